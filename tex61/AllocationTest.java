@@ -0,0 +1,237 @@
+package tex61;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+/** Allocation-budget tests of the stages of formatting.  Each test
+ *  formats a fixed, representative document and fails if the bytes
+ *  allocated by the current thread per megabyte (2**20 characters) of
+ *  input exceed the stage's budget below.  A change that makes a stage
+ *  allocate more must either be fixed or raise the budget deliberately;
+ *  a change that makes it allocate much less should lower the budget, so
+ *  that the gain is kept.
+ *  @author Jason Qiu
+ */
+public class AllocationTest {
+
+    /** Budget for breaking input into tokens, in bytes per MB (10 MB). */
+    static final long LEXER_BUDGET = 10L << 20;
+    /** Budget for parsing input into calls on a Controller, which
+     *  includes assembling lines (22 MB). */
+    static final long PARSER_BUDGET = 22L << 20;
+    /** Budget for assembling words into lines (12 MB). */
+    static final long LINE_BUDGET = 12L << 20;
+    /** Budget for paginating lines (100 KB). */
+    static final long PAGE_BUDGET = 100L << 10;
+    /** Budget for formatting a whole document, including its endnotes,
+     *  whether they are formatted in turn or concurrently (28 MB). */
+    static final long DOCUMENT_BUDGET = 28L << 20;
+
+    @Test
+    public void testLexer() {
+        check("lexer", LEXER_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                Lexer lexer = new Lexer(new StringReader(DOCUMENT));
+                for (int kind = lexer.next(); kind != Lexer.EOF;
+                     kind = lexer.next()) {
+                    if (kind == Lexer.COMMAND && lexer.hasArgument()) {
+                        lexer.argument(null);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testParser() {
+        final Controller controller =
+            new Controller(new PageAssembler(null) {
+                @Override
+                void write(String line) {
+                }
+            }, ErrorList.IGNORE);
+        check("parser", PARSER_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                controller.endnotes().clear();
+                new InputParser(DOCUMENT, controller).process();
+            }
+        });
+    }
+
+    @Test
+    public void testLineAssembler() {
+        final String[] words = DOCUMENT.split("[ \n]+");
+        check("line assembler", LINE_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                LineAssembler assembler =
+                    new LineAssembler(new PageAssembler(null) {
+                        @Override
+                        void write(String line) {
+                        }
+                    });
+                for (int i = 0; i < words.length; i += 1) {
+                    assembler.addText(words[i]);
+                    assembler.finishWord();
+                    if (i % PARAGRAPH_WORDS == 0) {
+                        assembler.endParagraph();
+                    }
+                }
+                assembler.endParagraph();
+            }
+        });
+    }
+
+    @Test
+    public void testPagination() {
+        final List<String> lines = new ArrayList<String>();
+        LineAssembler assembler = new LineAssembler(new PageAssembler(null) {
+            @Override
+            void write(String line) {
+                lines.add(line);
+            }
+        });
+        for (String word : DOCUMENT.split("[ \n]+")) {
+            assembler.addText(word);
+            assembler.finishWord();
+        }
+        assembler.endParagraph();
+        final List<String> out = new ArrayList<String>(2 * lines.size());
+        final PageCollector pages = new PageCollector(out);
+        pages.setTextHeight(PAGE_HEIGHT);
+        check("pagination", PAGE_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                pages.reset();
+                pages.setTextHeight(PAGE_HEIGHT);
+                for (int i = 0; i < lines.size(); i += 1) {
+                    if (i % PARAGRAPH_WORDS == 0) {
+                        pages.addLine(null);
+                    }
+                    pages.addLine(lines.get(i));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDocument() {
+        Controller controller = new Controller(
+            new PrintWriter(new StringWriter()), ErrorList.IGNORE);
+        controller.setConcurrentEndnotes(false);
+        checkDocument("document", controller);
+    }
+
+    /** The default, concurrent endnotes, formatted in this thread as
+     *  they are added, so that their allocation is counted too. */
+    @Test
+    public void testConcurrentEndnotes() {
+        Controller controller = new Controller(
+            new PrintWriter(new StringWriter()), ErrorList.IGNORE);
+        controller.setEndnoteExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+        checkDocument("document with concurrent endnotes", controller);
+    }
+
+    /** Check that formatting DOCUMENT with CONTROLLER is within
+     *  DOCUMENT_BUDGET, reporting failure as a failure of NAME. */
+    private void checkDocument(String name, final Controller controller) {
+        check(name, DOCUMENT_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                StringWriter output = new StringWriter(DOCUMENT.length());
+                controller.reset(new PrintWriter(output), ErrorList.IGNORE);
+                new InputParser(DOCUMENT, controller).process();
+            }
+        });
+    }
+
+    /** Run STAGE, which processes DOCUMENT, several times, so that the
+     *  compiler has optimized it, and check that the least it allocates
+     *  per MB of DOCUMENT is within BUDGET, reporting failure as a
+     *  failure of NAME. */
+    private void check(String name, long budget, Runnable stage) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i += 1) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            stage.run();
+            long bytes = threads.getCurrentThreadAllocatedBytes() - before;
+            best = Math.min(best, bytes);
+        }
+        long perMB = best * MB / DOCUMENT.length();
+        assertTrue(String.format("%s allocated %d bytes per MB of input, "
+                                 + "over its budget of %d", name, perMB,
+                                 budget),
+                   perMB <= budget);
+    }
+
+    /** Returns a representative document of about SIZE characters:
+     *  paragraphs of filled and justified text with commands and
+     *  endnotes, and some unfilled text. */
+    private static String document(int size) {
+        Random random = new Random(61);
+        StringBuilder text = new StringBuilder("\\textheight{40}");
+        for (int p = 0; text.length() < size; p += 1) {
+            if (p % 10 == 9) {
+                text.append("\\nofill\n");
+                for (int i = 0; i < 4; i += 1) {
+                    text.append("    ").append(WORDS[i]).append("  ")
+                        .append(WORDS[p % WORDS.length]).append('\n');
+                }
+                text.append("\\fill\n\n");
+                continue;
+            }
+            for (int w = 0; w < PARAGRAPH_WORDS; w += 1) {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+                text.append(w % 12 == 11 ? '\n' : ' ');
+            }
+            if (p % 4 == 0) {
+                text.append("\\endnote{See also ")
+                    .append(WORDS[random.nextInt(WORDS.length)])
+                    .append(" and \\{ more\\}.}");
+            }
+            if (p % 7 == 0) {
+                text.append("\\parindent{").append(p % 5).append('}');
+            }
+            text.append("\n\n");
+        }
+        return text.toString();
+    }
+
+    /** Words from which DOCUMENT is made. */
+    private static final String[] WORDS = {
+        "the", "formatter", "fills", "and", "justifies", "lines", "of",
+        "text,", "with", "paragraphs", "indented", "a", "page", "at",
+        "time.", "Words", "like", "representative", "are", "longer",
+    };
+    /** Number of words in a paragraph of DOCUMENT. */
+    private static final int PARAGRAPH_WORDS = 60;
+    /** Number of lines in a page. */
+    private static final int PAGE_HEIGHT = 40;
+    /** Characters in a megabyte. */
+    private static final long MB = 1 << 20;
+    /** Number of times each stage is run. */
+    private static final int RUNS = 20;
+    /** The document formatted by each test. */
+    private static final String DOCUMENT = document(1 << 20);
+
+}
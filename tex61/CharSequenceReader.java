@@ -0,0 +1,46 @@
+package tex61;
+
+import java.io.Reader;
+
+/** A Reader whose source is a CharSequence, such as the StringBuilder in
+ *  which an endnote has been accumulated.  Unlike a StringReader, it does
+ *  not require its source to be copied into a String first.
+ *  @author Jason Qiu
+ */
+class CharSequenceReader extends Reader {
+
+    /** A new CharSequenceReader whose source is TEXT. */
+    CharSequenceReader(CharSequence text) {
+        _text = text;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = Math.min(len, _text.length() - _pos);
+        if (n <= 0) {
+            return -1;
+        }
+        if (_text instanceof StringBuilder) {
+            ((StringBuilder) _text).getChars(_pos, _pos + n, cbuf, off);
+        } else {
+            for (int i = 0; i < n; i += 1) {
+                cbuf[off + i] = _text.charAt(_pos + i);
+            }
+        }
+        _pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** My source. */
+    private final CharSequence _text;
+    /** Index in _text of the next character to read. */
+    private int _pos;
+
+}
@@ -2,6 +2,11 @@ package tex61;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /** Receives (partial) words and commands, performs commands, and
  *  accumulates and formats words into lines of text, which are sent to a
@@ -13,15 +18,115 @@ import java.util.ArrayList;
  */
 class Controller {
 
-    /** A new Controller that sends formatted output to OUT. */
-    Controller(PrintWriter out) {
+    /** A new Controller that sends formatted output to OUT and error
+     *  messages to ERRORS. */
+    Controller(PrintWriter out, ErrorSink errors) {
         _out = out;
+        _errors = errors;
+        _lines = new Layout();
+        pageCollector = new PageCollector(_lines);
+        lineAssembler = new LineAssembler(pageCollector);
+        setConcurrentEndnotes(true);
     }
 
-    /** Add TEXT to the end of the word of formatted text currently
-     *  being accumulated. */
-    void addText(String text) {
-        lineAssembler.addText(text);
+    /** A new Controller that sends its formatted lines, unpaginated, to
+     *  PAGES and its error messages to ERRORS.  It keeps the text of its
+     *  endnotes, unformatted, in endnotes(), and closing it has no
+     *  effect.  Such a Controller formats part of a document, or the
+     *  endnotes of another Controller. */
+    Controller(PageAssembler pages, ErrorSink errors) {
+        _errors = errors;
+        _lines = null;
+        pageCollector = pages;
+        lineAssembler = new LineAssembler(pageCollector);
+    }
+
+    /** Discard all accumulated text, endnotes, and formatting settings,
+     *  so that this Controller may format a new document, sending its
+     *  output to OUT and its error messages to ERRORS. */
+    void reset(PrintWriter out, ErrorSink errors) {
+        _out = out;
+        _errors = errors;
+        _errorCount = 0;
+        _refNum = 1;
+        _endnoteCount = 0;
+        _endnotes.clear();
+        _endnoteOffsets.clear();
+        _printedLines = _pageBreaks = _mainLines = _endnotesPlaced = 0;
+        _closing = false;
+        pageCollector.reset();
+        lineAssembler.reset();
+        if (_endnoteFormatter != null) {
+            awaitEndnotes();
+            _endnoteLines.reset();
+            _endnoteErrors.clear();
+            _endnoteFormatter.prepareForEndnotes();
+        }
+    }
+
+    /** Iff ON, format each endnote in the background as soon as it is
+     *  complete, overlapping with the processing of the main text.
+     *  Otherwise, as originally, format all endnotes in turn when the main
+     *  text is closed.  Either way, the results are identical.  Must not
+     *  be called while endnotes are pending. */
+    void setConcurrentEndnotes(boolean on) {
+        if (!on) {
+            _endnoteFormatter = null;
+        } else if (_endnoteFormatter == null) {
+            _endnoteLines = new LineBuffer();
+            _endnoteErrors = new ArrayList<String>();
+            _endnoteFormatter =
+                new Controller(_endnoteLines, new ErrorSink() {
+                    @Override
+                    public void report(String msg) {
+                        _endnoteErrors.add(msg);
+                    }
+                });
+            _endnoteFormatter.prepareForEndnotes();
+            _pendingEndnotes = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /** Have EXECUTOR, rather than a shared background pool, format the
+     *  endnotes when concurrent endnotes are on.  An EXECUTOR that runs
+     *  each task at once formats each endnote as it is added. */
+    void setEndnoteExecutor(Executor executor) {
+        _endnoteExecutor = executor;
+    }
+
+    /** Report an error message formed from FORMAT and ARGS, whose meaning
+     *  is as for printf, to this Controller's error sink. */
+    void reportError(String format, Object... args) {
+        _errors.report(String.format(format, args));
+        _errorCount += 1;
+    }
+
+    /** Returns the number of calls to reportError since this Controller
+     *  was created or last reset. */
+    int errorCount() {
+        return _errorCount;
+    }
+
+    /** Record the source position of each line of output hereafter in
+     *  MAP, or (if MAP is null) nowhere.  MAP is cleared whenever I am
+     *  reset.  Only for a Controller that paginates its output. */
+    void setSourceMap(SourceMap map) {
+        _sourceMap = map;
+        ((PageCollector) pageCollector).setSourceMap(map);
+    }
+
+    /** Iff ON, keep paragraphs from leaving single lines at the tops and
+     *  bottoms of pages.  Only for a Controller that paginates its
+     *  output. */
+    void setWidowControl(boolean on) {
+        ((PageCollector) pageCollector).setWidowControl(on);
+    }
+
+    /** Add TEXT, which is the source text between offsets START and END,
+     *  to the end of the word of formatted text currently being
+     *  accumulated. */
+    void addText(String text, long start, long end) {
+        lineAssembler.addText(text, start, end);
     }
 
     /** Finish any current word of text and, if present, add to the
@@ -37,6 +142,21 @@ class Controller {
         lineAssembler.newLine();
     }
 
+    /** True iff I am not filling lines and have no text pending for the
+     *  current line, so that a whole line of text may be added by
+     *  addUnfilledLine. */
+    boolean acceptsUnfilledLine() {
+        return lineAssembler.acceptsUnfilledLine();
+    }
+
+    /** Add the line of unfilled text LINE, whose words are separated by
+     *  single blanks, and which is the source text between offsets START
+     *  and END, as if its words had been added one at a time and followed
+     *  by an end of line.  Only when acceptsUnfilledLine(). */
+    void addUnfilledLine(String line, long start, long end) {
+        lineAssembler.addUnfilledLine(line, start, end);
+    }
+
     /** Finish any current word of formatted text, format and output any
      *  current line of text, and start a new paragraph. */
     void endParagraph() {
@@ -44,12 +164,82 @@ class Controller {
     }
 
     /** If valid, process TEXT into an endnote, first appending a reference
-     *  to it to the line currently being accumuated. */
-    void formatEndnote(String text) {
-        addText("[" + _refNum + "]");
-        text = "[" + _refNum + "]\\ " + text;
+     *  to it to the line currently being accumuated.  The command
+     *  introducing the endnote is the source text between offsets START
+     *  and END. */
+    void formatEndnote(String text, long start, long end) {
+        startEndnote(start, end).append(text);
+        finishEndnote();
+    }
+
+    /** Append a reference to a new endnote to the line currently being
+     *  accumulated, and return the buffer to which the text of the endnote
+     *  is to be appended.  This lets a long endnote be copied straight from
+     *  the input into the endnote store.  The command introducing the
+     *  endnote is the source text between offsets START and END, and the
+     *  text of the endnote follows it in the source. */
+    StringBuilder startEndnote(long start, long end) {
+        addText("[" + _refNum + "]", start, end);
+        _endnote = new StringBuilder();
+        _endnote.append('[').append(_refNum).append("]\\ ");
+        _endnoteOffset = end;
         _refNum += 1;
-        _endnotes.add(text);
+        return _endnote;
+    }
+
+    /** Store the endnote begun by the last call to startEndnote, whose
+     *  text is now complete. */
+    void finishEndnote() {
+        addEndnote(_endnote, _endnoteOffset);
+        _endnote = null;
+    }
+
+    /** Store an endnote whose text, including its reference, is TEXT, and
+     *  whose text after its reference starts at source offset OFFSET.
+     *  The reference, which is not in the source, is taken to be at
+     *  OFFSET too.  With concurrent endnotes, formatting of the
+     *  endnote begins in the background, after that of all previous
+     *  endnotes, since an endnote's settings carry over to the next. */
+    void addEndnote(final CharSequence text, final long offset) {
+        _endnoteCount += 1;
+        if (_endnoteFormatter == null) {
+            _endnotes.add(text);
+            _endnoteOffsets.add(offset);
+            return;
+        }
+        final Controller formatter = _endnoteFormatter;
+        _pendingEndnotes = _pendingEndnotes.thenRunAsync(new Runnable() {
+            @Override
+            public void run() {
+                formatter.formatEndnoteText(text, offset);
+            }
+        }, _endnoteExecutor);
+    }
+
+    /** Returns the texts of all endnotes stored so far, when they are not
+     *  being formatted concurrently. */
+    List<CharSequence> endnotes() {
+        return _endnotes;
+    }
+
+    /** Returns the source offset of the Kth of endnotes(), as given to
+     *  addEndnote. */
+    long endnoteOffset(int k) {
+        return _endnoteOffsets.get(k);
+    }
+
+    /** Number the next endnote N. */
+    void setNextEndnote(int n) {
+        _refNum = n;
+    }
+
+    /** Add the formatted lines and text height changes in LINES, as if
+     *  they had resulted from the text I have processed so far followed
+     *  by the end of a paragraph.  LINES is unchanged, so that it may be
+     *  added again elsewhere. */
+    void addLines(LineBuffer lines) {
+        lineAssembler.endParagraph();
+        lines.play(pageCollector);
     }
 
     /** Set the current text height (number of lines per page) to VAL, if
@@ -98,39 +288,227 @@ class Controller {
     /** Finish the current formatted document or endnote (depending on mode).
      *  Formats and outputs all pending text. */
     void close() {
+        if (_lines == null) {
+            return;
+        }
+        Events.EndnoteBatch endnoteEvent = Events.endnoteBatch();
+        startEndnotes();
         writeEndnotes();
-        PageAssembler pagePrinter = new PagePrinter(_out);
-        for (String line : _lines) {
-            pagePrinter.addLine(line);
+        pageCollector.endParagraph();
+        if (endnoteEvent != null) {
+            endnoteEvent.endnotes = _endnoteCount;
+            endnoteEvent.lines = _printedLines + _lines.size() - _mainLines;
+            endnoteEvent.concurrent = _endnoteFormatter != null;
+            endnoteEvent.commit();
+        }
+        Events.OutputFlush outputEvent = Events.outputFlush();
+        printLines();
+        _closing = false;
+        _out.flush();
+        if (outputEvent != null) {
+            outputEvent.lines = _printedLines;
+            outputEvent.pages = _printedLines == 0 ? 0 : _pageBreaks + 1;
+            outputEvent.commit();
+        }
+    }
+
+    /** Print the lines placed on pages so far, which nothing that follows
+     *  can change, and discard them, so that a long document need not be
+     *  held whole.  Lines held back by widow control, the current line,
+     *  and endnotes are not yet placed.  Called at close, and as the
+     *  parts of a document formatted in Shards are added.  Until then, a
+     *  document stopped by an error prints nothing. */
+    void printLines() {
+        if (_lines == null) {
+            return;
+        }
+        _lines.print(_out);
+        _printedLines += _lines.size();
+        _pageBreaks += _lines.pageBreaks();
+        _lines.clear();
+    }
+
+    /** Place up to LIMIT more lines of my endnotes on pages, as close
+     *  would, and print the lines placed, so that the endnotes of a long
+     *  document may be written a piece at a time.  Only once my main text
+     *  is complete, with concurrent endnotes.  Returns true iff lines
+     *  remain, which close places. */
+    boolean printEndnotes(int limit) {
+        if (_lines == null || _endnoteFormatter == null) {
+            return false;
         }
+        startEndnotes();
+        int to = (int) Math.min(_endnoteLines.size(),
+                                (long) _endnotesPlaced + limit);
+        _endnoteLines.play(pageCollector, _endnotesPlaced, to);
+        _endnotesPlaced = to;
+        printLines();
+        return to < _endnoteLines.size();
     }
 
-    /** Write all accumulated endnotes to _mainText. */
+    /** Prepare to place my endnotes, unless already done. */
+    private void startEndnotes() {
+        if (_closing) {
+            return;
+        }
+        _mainLines = _printedLines + _lines.size();
+        _closing = true;
+        if (_endnoteFormatter != null) {
+            try {
+                _pendingEndnotes.join();
+            } catch (CompletionException e) {
+                forwardEndnoteErrors();
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            forwardEndnoteErrors();
+        } else {
+            useEndnoteSettings();
+        }
+        if (_sourceMap != null) {
+            _sourceMap.startEndnotes();
+        }
+    }
+
+    /** Write all accumulated endnotes (those not yet placed by
+     *  printEndnotes) to _mainText. */
     private void writeEndnotes() {
+        if (_endnoteFormatter != null) {
+            _endnoteLines.play(pageCollector, _endnotesPlaced,
+                               _endnoteLines.size());
+            _endnoteLines.playEnd(pageCollector);
+            _endnoteLines.reset();
+            _endnotesPlaced = 0;
+            return;
+        }
+        for (int k = 0; k < _endnotes.size(); k += 1) {
+            formatEndnoteText(_endnotes.get(k), _endnoteOffsets.get(k));
+        }
+    }
+
+    /** Format the endnote whose text (including its reference) is TEXT,
+     *  and whose text after its reference starts at source offset OFFSET,
+     *  using the current settings. */
+    private void formatEndnoteText(CharSequence text, long offset) {
+        if (_endnoteParser == null) {
+            _endnoteParser = new InputParser(new CharSequenceReader(text),
+                                             this);
+        } else {
+            _endnoteParser.reset(new CharSequenceReader(text));
+        }
+        _endnoteParser.setBaseOffset(offset, referenceLength(text));
+        _endnoteParser.processEndnote();
+    }
+
+    /** Returns the length of the reference, "[N]\\ ", that starts the
+     *  endnote TEXT. */
+    private static int referenceLength(CharSequence text) {
+        int k = 0;
+        while (text.charAt(k) != ']') {
+            k += 1;
+        }
+        return k + 3;
+    }
+
+    /** Set my LineAssembler to the state the LineAssembler of the main
+     *  text is in when its endnotes are written: at the end of a
+     *  paragraph, with endnote settings. */
+    private void prepareForEndnotes() {
+        lineAssembler.reset();
+        lineAssembler.endParagraph();
+        useEndnoteSettings();
+    }
+
+    /** Change the settings of my LineAssembler to those for endnotes. */
+    private void useEndnoteSettings() {
         lineAssembler.setFill(true);
         lineAssembler.setJustify(true);
         lineAssembler.setParSkip(Defaults.ENDNOTE_PARAGRAPH_SKIP);
         lineAssembler.setIndentation(Defaults.ENDNOTE_INDENTATION);
         lineAssembler.setParIndentation(Defaults.ENDNOTE_PARAGRAPH_INDENTATION);
         lineAssembler.setTextWidth(Defaults.ENDNOTE_TEXT_WIDTH);
-        for (String s : _endnotes) {
-            InputParser endnoteParser = new InputParser(s, this);
-            endnoteParser.processEndnote();
+    }
+
+    /** Report the errors found while formatting endnotes in the
+     *  background. */
+    private void forwardEndnoteErrors() {
+        for (String msg : _endnoteErrors) {
+            _errors.report(msg);
+            _errorCount += 1;
         }
+        _endnoteErrors.clear();
     }
 
+    /** Wait until no endnote is being formatted in the background,
+     *  ignoring any errors. */
+    private void awaitEndnotes() {
+        try {
+            _pendingEndnotes.join();
+        } catch (CompletionException e) {
+            /* Errors from an abandoned document are not reported. */
+        }
+        _pendingEndnotes = CompletableFuture.completedFuture(null);
+    }
+
+    /** Formats endnotes in the background. */
+    private static final Executor ENDNOTE_EXECUTOR =
+        ForkJoinPool.commonPool();
+
+    /** Formats endnotes when concurrent endnotes are on. */
+    private Executor _endnoteExecutor = ENDNOTE_EXECUTOR;
     /** Number of next endnote. */
     private int _refNum = 1;
     /** PrinterWriter to send output to. */
     private PrintWriter _out;
-    /** List of endnotes. */
-    private ArrayList<String> _endnotes = new ArrayList<String>();
-    /** List of formatted lines. */
-    private ArrayList<String> _lines = new ArrayList<String>();
+    /** Destination of error messages. */
+    private ErrorSink _errors;
+    /** Number of errors reported to _errors. */
+    private int _errorCount;
+    /** Number of endnotes stored since I was created or reset. */
+    private int _endnoteCount;
+    /** List of endnotes, when they are formatted at close. */
+    private ArrayList<CharSequence> _endnotes =
+        new ArrayList<CharSequence>();
+    /** Source offsets of _endnotes. */
+    private ArrayList<Long> _endnoteOffsets = new ArrayList<Long>();
+    /** The endnote being accumulated. */
+    private StringBuilder _endnote;
+    /** Source offset of the text of _endnote after its reference. */
+    private long _endnoteOffset;
+    /** Where the source positions of output lines are recorded, or
+     *  null. */
+    private SourceMap _sourceMap;
+    /** Parses endnotes formatted by this Controller. */
+    private InputParser _endnoteParser;
+    /** Formats my endnotes in the background, or null if they are
+     *  formatted at close. */
+    private Controller _endnoteFormatter;
+    /** Formatted lines of endnotes from _endnoteFormatter. */
+    private LineBuffer _endnoteLines;
+    /** Error messages from _endnoteFormatter. */
+    private ArrayList<String> _endnoteErrors;
+    /** Completes when all endnotes so far have been formatted by
+     *  _endnoteFormatter. */
+    private CompletableFuture<Void> _pendingEndnotes;
+    /** Formatted lines, waiting to be printed. */
+    private final Layout _lines;
+    /** Number of lines printed since I was created or reset. */
+    private int _printedLines;
+    /** Number of those lines that start pages after the first. */
+    private int _pageBreaks;
+    /** Number of my lines, printed or not, that are of the main
+     *  text. */
+    private int _mainLines;
+    /** True iff my endnotes are being placed. */
+    private boolean _closing;
+    /** Number of lines of _endnoteLines placed by printEndnotes. */
+    private int _endnotesPlaced;
     /** This controller's PageColletor. */
-    private PageAssembler pageCollector = new PageCollector(_lines);
+    private final PageAssembler pageCollector;
     /** This controller's LineAssembler. */
-    private LineAssembler lineAssembler = new LineAssembler(pageCollector);
+    private final LineAssembler lineAssembler;
 
 
 }
@@ -0,0 +1,40 @@
+package tex61;
+
+/** Finds the characters that end a run of plain text in formatter input:
+ *  blank, tab, carriage return, newline, \, {, and }, by looking each
+ *  character up in a table.
+ *  @author Jason Qiu
+ */
+final class DelimiterScanner {
+
+    /** Not instantiable. */
+    private DelimiterScanner() {
+    }
+
+    /** Returns the index of the first delimiter in BUF[FROM .. TO-1], or
+     *  TO if there is none. */
+    static int skipText(char[] buf, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            char c = buf[i];
+            if (c < DELIMITER.length && DELIMITER[c]) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /** True iff C ends a run of plain text. */
+    static boolean isDelimiter(char c) {
+        return c < DELIMITER.length && DELIMITER[c];
+    }
+
+    /** DELIMITER[c] is true iff c ends a run of plain text. */
+    private static final boolean[] DELIMITER = new boolean[128];
+
+    static {
+        for (char c : " \t\r\n\\{}".toCharArray()) {
+            DELIMITER[c] = true;
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package tex61;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** An ErrorSink for tests, which saves its messages in a list.
+ *  @author Jason Qiu
+ */
+class ErrorList implements ErrorSink {
+
+    /** An ErrorSink that ignores its messages. */
+    static final ErrorSink IGNORE = new ErrorSink() {
+        @Override
+        public void report(String msg) {
+        }
+    };
+
+    @Override
+    public synchronized void report(String msg) {
+        messages.add(msg);
+    }
+
+    /** Messages reported so far. */
+    final List<String> messages = new ArrayList<>();
+}
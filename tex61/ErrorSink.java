@@ -0,0 +1,14 @@
+package tex61;
+
+/** A destination for the error messages produced while formatting a
+ *  single document.  Each invocation of a Formatter is given its own
+ *  ErrorSink, so that concurrent invocations do not share an error count
+ *  or interleave their messages.
+ *  @author Jason Qiu
+ */
+public interface ErrorSink {
+
+    /** Record the error message MSG. */
+    void report(String msg);
+
+}
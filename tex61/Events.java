@@ -0,0 +1,144 @@
+package tex61;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/** The JDK Flight Recorder events of the text formatter, which show where
+ *  the time goes in formatting a document, next to the JVM's own events,
+ *  when it runs with -XX:StartFlightRecording.  Each event is one object,
+ *  begun and committed around the work it describes; when no recording
+ *  is in progress, committing does nothing.  Loading the first event
+ *  class sets up the recorder, which takes longer than formatting a short
+ *  document, so events are created only through the methods below, which
+ *  begin one only while recording() is true, and otherwise return null.
+ *  @author Jason Qiu
+ */
+final class Events {
+
+    /** Not instantiable. */
+    private Events() {
+    }
+
+    /** Returns true iff the Flight Recorder has been started in this JVM,
+     *  at startup or since, so that events may be recorded. */
+    static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /** Returns a begun Document event, or null if not recording(). */
+    static Document document() {
+        if (!recording()) {
+            return null;
+        }
+        Document event = new Document();
+        event.begin();
+        return event;
+    }
+
+    /** Returns a begun Paragraph event, or null if not recording(). */
+    static Paragraph paragraph() {
+        if (!recording()) {
+            return null;
+        }
+        Paragraph event = new Paragraph();
+        event.begin();
+        return event;
+    }
+
+    /** Returns a begun EndnoteBatch event, or null if not recording(). */
+    static EndnoteBatch endnoteBatch() {
+        if (!recording()) {
+            return null;
+        }
+        EndnoteBatch event = new EndnoteBatch();
+        event.begin();
+        return event;
+    }
+
+    /** Returns a begun OutputFlush event, or null if not recording(). */
+    static OutputFlush outputFlush() {
+        if (!recording()) {
+            return null;
+        }
+        OutputFlush event = new OutputFlush();
+        event.begin();
+        return event;
+    }
+
+    /** The formatting of a whole document. */
+    @Name("tex61.Document")
+    @Label("Document")
+    @Category("Text Formatter")
+    @Description("Formatting of a whole document")
+    static class Document extends Event {
+        /** Number of characters of input. */
+        @Label("Characters")
+        @DataAmount(DataAmount.BYTES)
+        long characters;
+        /** Number of Shards into which the document was split. */
+        @Label("Shards")
+        int shards;
+        /** Number of errors reported. */
+        @Label("Errors")
+        int errors;
+    }
+
+    /** The assembly of the lines of one paragraph.  Since there are many
+     *  paragraphs, only slow ones are recorded by default. */
+    @Name("tex61.Paragraph")
+    @Label("Paragraph")
+    @Category("Text Formatter")
+    @Description("Assembly of the words of a paragraph into lines")
+    @Threshold("1 ms")
+    static class Paragraph extends Event {
+        /** Number of words. */
+        @Label("Words")
+        int words;
+        /** Number of lines. */
+        @Label("Lines")
+        int lines;
+        /** Number of lines justified by spreading their words. */
+        @Label("Justified Lines")
+        int justifiedLines;
+    }
+
+    /** The formatting of the endnotes at the end of a document. */
+    @Name("tex61.EndnoteBatch")
+    @Label("Endnote Batch")
+    @Category("Text Formatter")
+    @Description("Formatting of the endnotes at the end of a document, or "
+                 + "the wait for their formatting in the background")
+    static class EndnoteBatch extends Event {
+        /** Number of endnotes. */
+        @Label("Endnotes")
+        int endnotes;
+        /** Number of lines of endnotes. */
+        @Label("Lines")
+        int lines;
+        /** True iff the endnotes were formatted in the background, so
+         *  that the duration is only the wait for them to finish. */
+        @Label("Concurrent")
+        boolean concurrent;
+    }
+
+    /** The writing of the paginated output of a document. */
+    @Name("tex61.OutputFlush")
+    @Label("Output Flush")
+    @Category("Text Formatter")
+    @Description("Writing of the paginated lines of a document")
+    static class OutputFlush extends Event {
+        /** Number of lines. */
+        @Label("Lines")
+        int lines;
+        /** Number of pages. */
+        @Label("Pages")
+        int pages;
+    }
+
+}
@@ -0,0 +1,111 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+/** Tests of the Flight Recorder events.
+ *  @author Jason Qiu
+ */
+public class EventsTest {
+
+    @Test
+    public void testEvents() throws IOException {
+        Path file = Files.createTempFile("tex61", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] { "Document", "Paragraph",
+                                              "EndnoteBatch",
+                                              "OutputFlush" }) {
+                recording.enable("tex61." + name).withThreshold(null);
+            }
+            recording.start();
+            new Formatter().format(DOCUMENT, ErrorList.IGNORE);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Map<String, RecordedEvent> last = new HashMap<>();
+        int paragraphs = 0, words = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            last.put(name, event);
+            if (name.equals("tex61.Paragraph")) {
+                paragraphs += 1;
+                words += event.getInt("words");
+            }
+        }
+        assertEquals("wrong number of paragraphs", 4, paragraphs);
+        assertEquals("wrong number of words", 12, words);
+        RecordedEvent document = last.get("tex61.Document");
+        assertEquals("wrong size", DOCUMENT.length(),
+                     document.getLong("characters"));
+        assertEquals("wrong number of errors", 1, document.getInt("errors"));
+        RecordedEvent endnotes = last.get("tex61.EndnoteBatch");
+        assertEquals("wrong number of endnotes", 1,
+                     endnotes.getInt("endnotes"));
+        assertEquals("wrong number of endnote lines", 1,
+                     endnotes.getInt("lines"));
+        RecordedEvent output = last.get("tex61.OutputFlush");
+        assertEquals("wrong number of lines", 6, output.getInt("lines"));
+        assertEquals("wrong number of pages", 3, output.getInt("pages"));
+    }
+
+    /** Check that a run of the program that is not recording loads no
+     *  event class, and so does not set up the Flight Recorder, which
+     *  would make every run of a short document several times slower. */
+    @Test
+    public void testNoRecorderAtStartup()
+        throws IOException, InterruptedException {
+        Path input = Files.createTempFile("tex61", ".tx");
+        Files.write(input, DOCUMENT.getBytes("US-ASCII"));
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "java");
+        command.add("-Xlog:class+load=info");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("tex61.Main");
+        command.add(input.toString());
+        Process program = new ProcessBuilder(command)
+            .redirectErrorStream(true).start();
+        List<String> loaded = new ArrayList<String>();
+        try (BufferedReader log = new BufferedReader(
+                 new InputStreamReader(program.getInputStream()))) {
+            for (String line = log.readLine(); line != null;
+                 line = log.readLine()) {
+                if (line.contains(" tex61.Events$")
+                    || line.contains(" jdk.jfr.Event ")
+                    || line.contains(" jdk.jfr.internal.")) {
+                    loaded.add(line);
+                }
+            }
+        }
+        program.waitFor();
+        Files.delete(input);
+        assertTrue("recorder set up without a recording: " + loaded,
+                   loaded.isEmpty());
+    }
+
+    /** A document of three pages with one error and one endnote. */
+    private static final String DOCUMENT =
+        "\\textheight{2}One paragraph of a few words\\endnote{A note.}\n\n"
+        + "\\bogus and another.\n\nA third.";
+
+}
@@ -0,0 +1,398 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/** Formats documents submitted by any number of tenants on a fixed set
+ *  of threads, so that a huge document does not hold up small ones
+ *  queued behind it.  Each job is put in one of two lanes by its
+ *  estimated cost: the SMALL lane, which threads serve first, and the
+ *  LARGE lane, which gets one turn in LARGE_SHARE so that it is never
+ *  starved.  Within a lane, tenants take turns, so that one tenant's
+ *  many jobs do not crowd out another's few.  A small job is formatted
+ *  in one turn by its thread's Formatter.  A large job is formatted
+ *  one slice at a time, each a Shard of whole paragraphs of about
+ *  SLICE_SIZE characters, and goes to the back of its tenant's queue
+ *  after each, so that its thread yields at a paragraph boundary.  The
+ *  lines of each slice are paginated, printed as their pages are
+ *  complete, and its endnotes formatted along with it, as for the
+ *  ShardCoordinator.  Once its text is done, a large job prints its
+ *  endnotes at most SLICE_LINES lines per turn.  This gives exactly the
+ *  output of a Formatter, except that an error that stops a large job
+ *  leaves the pages printed before it, as with the ShardCoordinator.
+ *  @author Jason Qiu
+ */
+public class FormatScheduler {
+
+    /** Lane of jobs whose cost is less than SMALL_JOB_COST. */
+    public static final int SMALL = 0;
+    /** Lane of the other jobs. */
+    public static final int LARGE = 1;
+
+    /** A new FormatScheduler that formats on THREADS threads, where
+     *  THREADS > 0. */
+    public FormatScheduler(int threads) {
+        for (int i = 0; i < _lanes.length; i += 1) {
+            _lanes[i] = new Lane();
+        }
+        for (int i = 0; i < threads; i += 1) {
+            Thread thread = new Thread("tex61-scheduler-" + i) {
+                @Override
+                public void run() {
+                    serve();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Schedule the formatting of the document TEXT for TENANT, writing
+     *  the result to OUTPUT and reporting all errors to ERRORS, as for
+     *  Formatter.format.  Returns the number of errors reported, once it
+     *  is known.  OUTPUT is flushed, but not closed.  ERRORS is called
+     *  from one of my threads. */
+    public Future<Integer> submit(String tenant, String text, Writer output,
+                                  ErrorSink errors) {
+        Job job = new Job(tenant, text, output, errors);
+        synchronized (this) {
+            if (_shutdown) {
+                throw new IllegalStateException("scheduler is shut down");
+            }
+            _lanes[job.lane].add(job);
+            notify();
+        }
+        return job.result;
+    }
+
+    /** Returns the estimated cost of formatting TEXT, in characters.  An
+     *  endnote costs ENDNOTE_COST characters more than its text, since
+     *  it is formatted separately, after the rest of the document. */
+    public static long cost(String text) {
+        long cost = text.length();
+        for (int i = text.indexOf(ENDNOTE); i >= 0;
+             i = text.indexOf(ENDNOTE, i + ENDNOTE.length())) {
+            cost += ENDNOTE_COST;
+        }
+        return cost;
+    }
+
+    /** Returns the number of jobs in LANE waiting for a thread. */
+    public synchronized int queueDepth(int lane) {
+        return _lanes[lane].size();
+    }
+
+    /** Returns the least latency, in milliseconds from submission to
+     *  completion, of at least PERCENT percent of the last LATENCY_SAMPLES
+     *  jobs in LANE, where 0 < PERCENT <= 100, or 0 if none has
+     *  completed. */
+    public synchronized double latency(int lane, double percent) {
+        long[] latencies = _lanes[lane].latencies;
+        int n = (int) Math.min(_lanes[lane].completed, latencies.length);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        int k = Math.max(0, (int) Math.ceil(percent / 100 * n) - 1);
+        return sorted[k] / 1e6;
+    }
+
+    /** Stop my threads once they finish their current slices.  The
+     *  results of jobs not yet complete by then are cancelled. */
+    public synchronized void shutdown() {
+        _shutdown = true;
+        for (Lane lane : _lanes) {
+            while (!lane.isEmpty()) {
+                lane.poll().result.cancel(false);
+            }
+        }
+        notifyAll();
+    }
+
+    /** Format slices of jobs until shut down.  The main loop of each of
+     *  my threads.  An Error other than one from a job's ErrorSink fails
+     *  that job and then ends the thread. */
+    private void serve() {
+        Formatter formatter = new Formatter();
+        formatter.setEndnoteExecutor(INLINE);
+        for (Job job = take(); job != null; job = take()) {
+            boolean more;
+            try {
+                more = job.step(formatter);
+            } catch (Error e) {
+                job.result.completeExceptionally(e);
+                throw e;
+            }
+            if (more) {
+                synchronized (this) {
+                    if (_shutdown) {
+                        job.result.cancel(false);
+                    } else {
+                        _lanes[job.lane].add(job);
+                        notify();
+                    }
+                }
+            } else {
+                finished(job);
+                job.complete();
+            }
+        }
+    }
+
+    /** Returns the next job to have a slice formatted, waiting for one if
+     *  necessary, or null once I am shut down. */
+    private synchronized Job take() {
+        while (!_shutdown) {
+            Lane small = _lanes[SMALL], large = _lanes[LARGE];
+            if (!small.isEmpty() || !large.isEmpty()) {
+                _turns += 1;
+                if (large.isEmpty()
+                    || (!small.isEmpty() && _turns % LARGE_SHARE != 0)) {
+                    return small.poll();
+                }
+                return large.poll();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Record the latency of the completed JOB. */
+    private synchronized void finished(Job job) {
+        Lane lane = _lanes[job.lane];
+        lane.latencies[(int) (lane.completed % lane.latencies.length)] =
+            System.nanoTime() - job.submitted;
+        lane.completed += 1;
+    }
+
+    /** A document being formatted. */
+    private static class Job {
+
+        /** The job of formatting TEXT for TENANT, as for submit(TENANT,
+         *  TEXT, OUTPUT, ERRORS). */
+        Job(String tenant, String text, Writer output, ErrorSink errors) {
+            this.tenant = tenant;
+            lane = cost(text) < SMALL_JOB_COST ? SMALL : LARGE;
+            if (output instanceof PrintWriter) {
+                _out = (PrintWriter) output;
+            } else {
+                _out = new PrintWriter(output);
+            }
+            _errors = new GuardedSink(errors);
+            if (lane == SMALL) {
+                _text = text;
+                _splitter = null;
+                _collector = null;
+            } else {
+                _text = null;
+                _splitter = new Shard.Splitter(text, SLICE_SIZE);
+                ShardCoordinator coordinator = new ShardCoordinator(1);
+                coordinator.setEndnoteExecutor(INLINE);
+                _collector = coordinator.collector(_out, _errors);
+            }
+        }
+
+        /** If I am SMALL, format all of me with FORMATTER.  Otherwise,
+         *  format my next slice, paginating its lines, printing those on
+         *  complete pages, and formatting its endnotes.  Once all slices
+         *  are formatted (or one has failed), print my endnotes,
+         *  SLICE_LINES lines at a time, and then finish formatting me,
+         *  ready to complete.  An Exception, or an Error thrown by my
+         *  ErrorSink, is kept to complete my result with.  Returns true
+         *  iff there is more to do. */
+        boolean step(Formatter formatter) {
+            try {
+                if (lane == SMALL) {
+                    _count = formatter.format(new StringReader(_text), _out,
+                                              _errors);
+                    return false;
+                }
+                if (!_failed && _splitter.hasNext()) {
+                    _failed = !_collector.add(_splitter.next().format());
+                    return true;
+                }
+                if (_collector.printEndnotes(SLICE_LINES)) {
+                    return true;
+                }
+                _count = _collector.close();
+            } catch (SinkError e) {
+                _failure = e.getCause();
+            } catch (Exception e) {
+                _failure = e;
+            }
+            return false;
+        }
+
+        /** Complete my result, once step has returned false. */
+        void complete() {
+            if (_failure != null) {
+                result.completeExceptionally(_failure);
+            } else {
+                result.complete(_count);
+            }
+        }
+
+        /** Tenant for whom I am formatted. */
+        final String tenant;
+        /** My lane. */
+        final int lane;
+        /** Time of my submission, as from System.nanoTime. */
+        final long submitted = System.nanoTime();
+        /** The number of errors reported in formatting me. */
+        final CompletableFuture<Integer> result =
+            new CompletableFuture<Integer>();
+
+        /** My text, if I am SMALL. */
+        private final String _text;
+        /** Destination of my output. */
+        private final PrintWriter _out;
+        /** Destination of my error messages. */
+        private final ErrorSink _errors;
+        /** Breaks my text into slices, if I am LARGE. */
+        private final Shard.Splitter _splitter;
+        /** Combines my formatted slices, if I am LARGE. */
+        private final ShardCoordinator.Collector _collector;
+        /** True iff the formatting of a slice has failed, so that the
+         *  rest are not formatted. */
+        private boolean _failed;
+        /** Number of errors reported. */
+        private int _count;
+        /** What went wrong with formatting me, or null. */
+        private Throwable _failure;
+    }
+
+    /** An ErrorSink that passes each message on to another, wrapping
+     *  any Error that the other throws in a SinkError, so that it fails
+     *  the job rather than the thread formatting it. */
+    private static class GuardedSink implements ErrorSink {
+
+        /** An ErrorSink that passes each message on to ERRORS. */
+        GuardedSink(ErrorSink errors) {
+            _errors = errors;
+        }
+
+        @Override
+        public void report(String msg) {
+            try {
+                _errors.report(msg);
+            } catch (Error e) {
+                throw new SinkError(e);
+            }
+        }
+
+        /** Where I pass messages on. */
+        private final ErrorSink _errors;
+    }
+
+    /** Carries an Error thrown by the ErrorSink of a job. */
+    private static class SinkError extends RuntimeException {
+
+        /** A SinkError carrying CAUSE. */
+        SinkError(Error cause) {
+            super(cause);
+        }
+    }
+
+    /** The jobs of one lane waiting for a thread, with the latencies of
+     *  its completed jobs.  Tenants take turns: the job taken is the
+     *  first of the tenant who has waited longest for a turn. */
+    private static class Lane {
+
+        /** Returns true iff no job is waiting. */
+        boolean isEmpty() {
+            return _turns.isEmpty();
+        }
+
+        /** Returns the number of jobs waiting. */
+        int size() {
+            return _size;
+        }
+
+        /** Add JOB at the end of its tenant's queue. */
+        void add(Job job) {
+            ArrayDeque<Job> queue = _queues.get(job.tenant);
+            if (queue == null) {
+                queue = new ArrayDeque<Job>();
+                _queues.put(job.tenant, queue);
+                _turns.add(job.tenant);
+            }
+            queue.add(job);
+            _size += 1;
+        }
+
+        /** Remove and return the next job.  Assumes !isEmpty(). */
+        Job poll() {
+            String tenant = _turns.remove();
+            ArrayDeque<Job> queue = _queues.get(tenant);
+            Job job = queue.remove();
+            if (queue.isEmpty()) {
+                _queues.remove(tenant);
+            } else {
+                _turns.add(tenant);
+            }
+            _size -= 1;
+            return job;
+        }
+
+        /** Latencies of the last LATENCY_SAMPLES completed jobs, in
+         *  nanoseconds, the latest at index (completed - 1) modulo their
+         *  number. */
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        /** Number of jobs completed. */
+        long completed;
+
+        /** Jobs waiting, by tenant. */
+        private final Map<String, ArrayDeque<Job>> _queues =
+            new HashMap<String, ArrayDeque<Job>>();
+        /** Tenants with jobs waiting, in the order of their turns. */
+        private final ArrayDeque<String> _turns = new ArrayDeque<String>();
+        /** Number of jobs waiting. */
+        private int _size;
+    }
+
+    /** Least estimated cost of a LARGE job, in characters. */
+    static final long SMALL_JOB_COST = 1 << 16;
+    /** Least size of a slice of a job, in characters. */
+    static final int SLICE_SIZE = 1 << 14;
+    /** Most lines of endnotes a large job prints in a turn. */
+    static final int SLICE_LINES = 1 << 9;
+    /** Estimated cost of formatting an endnote, beyond that of its text,
+     *  in characters. */
+    static final long ENDNOTE_COST = 256;
+    /** The LARGE lane gets one turn in this many when both lanes have
+     *  jobs waiting. */
+    static final int LARGE_SHARE = 4;
+    /** Number of latencies kept per lane. */
+    static final int LATENCY_SAMPLES = 1024;
+    /** Runs each task at once, so that the endnotes of a job are
+     *  formatted with the slice that holds them. */
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+    /** The command that starts an endnote. */
+    private static final String ENDNOTE = "\\endnote";
+
+    /** My lanes, indexed by SMALL and LARGE. */
+    private final Lane[] _lanes = new Lane[2];
+    /** Number of turns taken. */
+    private long _turns;
+    /** True once I am shut down. */
+    private boolean _shutdown;
+
+}
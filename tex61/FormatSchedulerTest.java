@@ -0,0 +1,215 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Tests of the FormatScheduler.
+ *  @author Jason Qiu
+ */
+public class FormatSchedulerTest {
+
+    @Test
+    public void testOutput() throws Exception {
+        FormatScheduler scheduler = new FormatScheduler(2);
+        String large = document(2000);
+        List<String> docs = new ArrayList<>();
+        docs.add(document(30));
+        docs.add(large);
+        docs.add(large + "\\textwidth{x} rest\n\nof it");
+        docs.add(large.substring(0, large.length() / 2) + "\\bad{"
+                 + large.substring(large.length() / 2));
+        docs.add("");
+        assertTrue("document not large enough",
+                   FormatScheduler.cost(large)
+                   >= FormatScheduler.SMALL_JOB_COST);
+        List<Future<Integer>> counts = new ArrayList<>();
+        List<StringWriter> outputs = new ArrayList<>();
+        List<ErrorList> errors = new ArrayList<>();
+        for (String doc : docs) {
+            StringWriter output = new StringWriter();
+            ErrorList sink = new ErrorList();
+            outputs.add(output);
+            errors.add(sink);
+            counts.add(scheduler.submit("tenant", doc, output, sink));
+        }
+        for (int i = 0; i < docs.size(); i += 1) {
+            int count = counts.get(i).get();
+            assertEquals("wrong error count", errors.get(i).messages.size(),
+                         count);
+            assertEquals("scheduled output differs (document " + i + ")",
+                         expected(docs.get(i)),
+                         errors.get(i).messages + outputs.get(i).toString());
+        }
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testSmallJobsFirst() throws Exception {
+        FormatScheduler scheduler = new FormatScheduler(1);
+        Future<Integer> large =
+            scheduler.submit("big", document(20000), new StringWriter(),
+                             new ErrorList());
+        List<Future<Integer>> small = new ArrayList<>();
+        for (int i = 0; i < 20; i += 1) {
+            small.add(scheduler.submit("tenant" + i % 3, document(5),
+                                       new StringWriter(), new ErrorList()));
+        }
+        for (Future<Integer> job : small) {
+            job.get();
+        }
+        assertFalse("small jobs waited for a large one", large.isDone());
+        assertTrue("no small latencies recorded",
+                   scheduler.latency(FormatScheduler.SMALL, 99) > 0);
+        large.get();
+        assertEquals("jobs left waiting", 0,
+                     scheduler.queueDepth(FormatScheduler.SMALL)
+                     + scheduler.queueDepth(FormatScheduler.LARGE));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testTenantsTakeTurns() throws Exception {
+        FormatScheduler scheduler = new FormatScheduler(1);
+        String doc = document(3000);
+        List<Future<Integer>> busy = new ArrayList<>();
+        for (int i = 0; i < 3; i += 1) {
+            busy.add(scheduler.submit("busy", doc, new StringWriter(),
+                                      new ErrorList()));
+        }
+        scheduler.submit("quiet", doc, new StringWriter(),
+                         new ErrorList()).get();
+        for (Future<Integer> job : busy) {
+            assertFalse("one tenant's jobs crowded out another's",
+                        job.isDone());
+        }
+        for (Future<Integer> job : busy) {
+            job.get();
+        }
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        FormatScheduler scheduler = new FormatScheduler(1);
+        List<Future<Integer>> jobs = new ArrayList<>();
+        for (int i = 0; i < 4; i += 1) {
+            jobs.add(scheduler.submit("tenant", document(3000),
+                                      new StringWriter(), new ErrorList()));
+        }
+        scheduler.shutdown();
+        int cancelled = 0;
+        for (Future<Integer> job : jobs) {
+            try {
+                job.get(10, TimeUnit.SECONDS);
+            } catch (CancellationException e) {
+                cancelled += 1;
+            }
+        }
+        assertTrue("no job cancelled", cancelled > 0);
+    }
+
+    @Test
+    public void testFailureKeepsThread() throws Exception {
+        FormatScheduler scheduler = new FormatScheduler(1);
+        ErrorSink failing = new ErrorSink() {
+            @Override
+            public void report(String msg) {
+                throw new StackOverflowError(msg);
+            }
+        };
+        for (String doc : new String[] { "\\bogus text", document(2000) }) {
+            Future<Integer> failed =
+                scheduler.submit("tenant", doc, new StringWriter(), failing);
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                fail("error in a job not passed on");
+            } catch (ExecutionException e) {
+                assertTrue("wrong failure",
+                           e.getCause() instanceof StackOverflowError);
+            }
+        }
+        assertEquals("thread did not survive a failed job", 0,
+                     (int) scheduler.submit("tenant", "plain text",
+                                            new StringWriter(),
+                                            new ErrorList())
+                     .get(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testCost() {
+        String text = "Some text\\endnote{a note} and\\endnote{another}.";
+        assertEquals("wrong cost",
+                     text.length() + 2 * FormatScheduler.ENDNOTE_COST,
+                     FormatScheduler.cost(text));
+        FormatScheduler scheduler = new FormatScheduler(1);
+        assertEquals("latency without jobs", 0,
+                     scheduler.latency(FormatScheduler.LARGE, 50), 0);
+        scheduler.shutdown();
+    }
+
+    /** Returns the errors and output expected from scheduling DOC: those
+     *  of a Formatter, except that when an error stops a LARGE job, the
+     *  pages printed before it remain, as from a ShardCoordinator. */
+    private String expected(String doc) throws IOException {
+        ErrorList errors = new ErrorList();
+        if (FormatScheduler.cost(doc) < FormatScheduler.SMALL_JOB_COST) {
+            String output = new Formatter().format(doc, errors);
+            return errors.messages + output;
+        }
+        List<CompletableFuture<Shard.Result>> results = new ArrayList<>();
+        for (Shard shard : Shard.split(doc, FormatScheduler.SLICE_SIZE)) {
+            results.add(CompletableFuture.completedFuture(shard.format()));
+        }
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        new ShardCoordinator(1).collect(results, out, errors);
+        out.flush();
+        return errors.messages + output.toString();
+    }
+
+    /** Returns a document of PARAGRAPHS paragraphs whose settings change
+     *  from time to time, with endnotes. */
+    private String document(int paragraphs) {
+        StringBuilder text = new StringBuilder("\\textheight{9}");
+        for (int i = 0; i < paragraphs; i += 1) {
+            text.append("Paragraph ").append(i)
+                .append(" has a few words to fill and justify.");
+            if (i % 3 == 0) {
+                text.append("\\endnote{Note ").append(i)
+                    .append(" \\parindent{1} text.\n\nMore.}");
+            }
+            if (i % 7 == 0) {
+                text.append("\\textwidth{").append(25 + i % 40)
+                    .append("}\\parindent{").append(i % 5).append("}");
+            }
+            if (i % 11 == 0) {
+                text.append("\\nofill Some   lines\nkept as is\n");
+            }
+            if (i % 13 == 0) {
+                text.append("\\fill\\nojustify\\indent{2}\\parskip{2}");
+            }
+            if (i % 17 == 0) {
+                text.append("\\justify\\textheight{5}\\bogus");
+            }
+            text.append(i % 2 == 0 ? "\n\n" : "\n \n\n");
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,101 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+
+/** The embeddable entry point to the text formatter.  A Formatter holds
+ *  one Controller (with its LineAssembler and PageCollector) and one
+ *  InputParser, and resets rather than reallocates them for each document
+ *  it formats.  A Formatter is not itself thread-safe: use one per
+ *  thread, or borrow them from a FormatterPool.
+ *  @author Jason Qiu
+ */
+public class Formatter {
+
+    /** A new Formatter with default settings of all parameters. */
+    public Formatter() {
+        _controller = new Controller((PrintWriter) null, null);
+        _parser = new InputParser(new StringReader(""), _controller);
+    }
+
+    /** Record the source positions of the lines of each document
+     *  formatted hereafter in MAP, replacing its contents, or (if MAP is
+     *  null) nowhere. */
+    public void setSourceMap(SourceMap map) {
+        _controller.setSourceMap(map);
+    }
+
+    /** Iff ON, keep the paragraphs of each document formatted hereafter
+     *  from leaving single lines at the tops and bottoms of pages, by
+     *  moving lines to the next page.  Off by default. */
+    public void setWidowControl(boolean on) {
+        _controller.setWidowControl(on);
+    }
+
+    /** Format the endnotes of each document formatted hereafter with
+     *  EXECUTOR, as for Controller.setEndnoteExecutor. */
+    void setEndnoteExecutor(Executor executor) {
+        _controller.setEndnoteExecutor(executor);
+    }
+
+    /** Format the document read from INPUT, writing the result to OUTPUT
+     *  and reporting all errors to ERRORS.  OUTPUT is flushed, but not
+     *  closed.  Returns the number of errors reported; output is complete
+     *  only if this is 0.  If an error stops the formatting, nothing is
+     *  written. */
+    public int format(Reader input, Writer output, ErrorSink errors)
+        throws IOException {
+        PrintWriter out;
+        if (output instanceof PrintWriter) {
+            out = (PrintWriter) output;
+        } else {
+            out = new PrintWriter(output);
+        }
+        Events.Document event = Events.document();
+        _controller.reset(out, errors);
+        _parser.reset(input);
+        int fatal;
+        try {
+            _parser.process();
+            fatal = 0;
+        } catch (FormatException e) {
+            errors.report(e.getMessage());
+            fatal = 1;
+        }
+        out.flush();
+        int count = _controller.errorCount() + fatal;
+        if (event != null) {
+            event.characters = _parser.offset();
+            event.shards = 1;
+            event.errors = count;
+            event.commit();
+        }
+        if (_parser.ioException() != null) {
+            throw _parser.ioException();
+        }
+        return count;
+    }
+
+    /** Returns the result of formatting the document TEXT, reporting all
+     *  errors to ERRORS. */
+    public String format(String text, ErrorSink errors) {
+        StringWriter result = new StringWriter();
+        try {
+            format(new StringReader(text), result, errors);
+        } catch (IOException e) {
+            throw new AssertionError("I/O error on a string", e);
+        }
+        return result.toString();
+    }
+
+    /** Receives the tokens of each document and formats them. */
+    private final Controller _controller;
+    /** Breaks each document into tokens. */
+    private final InputParser _parser;
+
+}
@@ -0,0 +1,60 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** A thread-safe source of formatting.  Each call borrows an idle
+ *  Formatter (creating one only if none is idle), uses it, and returns it
+ *  for reuse, so that any number of threads may format documents at once
+ *  without reallocating a Formatter per document.
+ *  @author Jason Qiu
+ */
+public class FormatterPool {
+
+    /** A new, empty pool that retains at most CAPACITY idle Formatters.
+     *  CAPACITY > 0. */
+    public FormatterPool(int capacity) {
+        _idle = new ArrayBlockingQueue<Formatter>(capacity);
+    }
+
+    /** Format the document read from INPUT, writing the result to OUTPUT
+     *  and reporting all errors to ERRORS, as for Formatter.format.
+     *  Returns the number of errors reported. */
+    public int format(Reader input, Writer output, ErrorSink errors)
+        throws IOException {
+        Formatter formatter = acquire();
+        try {
+            return formatter.format(input, output, errors);
+        } finally {
+            _idle.offer(formatter);
+        }
+    }
+
+    /** Returns the result of formatting the document TEXT, reporting all
+     *  errors to ERRORS. */
+    public String format(String text, ErrorSink errors) {
+        Formatter formatter = acquire();
+        try {
+            return formatter.format(text, errors);
+        } finally {
+            _idle.offer(formatter);
+        }
+    }
+
+    /** Returns an idle Formatter, or a new one if there is none.  The
+     *  result is used by only one thread until it is offered back to
+     *  _idle. */
+    private Formatter acquire() {
+        Formatter formatter = _idle.poll();
+        if (formatter == null) {
+            formatter = new Formatter();
+        }
+        return formatter;
+    }
+
+    /** Formatters not currently in use. */
+    private final ArrayBlockingQueue<Formatter> _idle;
+
+}
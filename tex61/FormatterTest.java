@@ -0,0 +1,143 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Tests of the embeddable Formatter and FormatterPool.
+ *  @author Jason Qiu
+ */
+public class FormatterTest {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    @Test
+    public void testFormatString() {
+        ErrorList errors = new ErrorList();
+        String result = new Formatter().format("hello\\endnote{world}",
+                                               errors);
+        assertEquals("wrong output",
+                     "   hello[1]" + NL + "[1] world" + NL, result);
+        assertEquals("no errors expected", 0, errors.messages.size());
+    }
+
+    @Test
+    public void testReuse() {
+        Formatter formatter = new Formatter();
+        ErrorList errors = new ErrorList();
+        String first = formatter.format(DOCUMENT, errors);
+        formatter.format("\\textwidth{20}\\nofill\\parskip{5}\\bogus x"
+                         + "\\endnote{y}", errors);
+        assertEquals("reused Formatter kept old settings",
+                     first, formatter.format(DOCUMENT, errors));
+    }
+
+    @Test
+    public void testErrorsPerInvocation() {
+        Formatter formatter = new Formatter();
+        ErrorList errors1 = new ErrorList();
+        ErrorList errors2 = new ErrorList();
+        formatter.format("\\bogus text", errors1);
+        formatter.format("\\textwidth{x}", errors2);
+        formatter.format(DOCUMENT, new ErrorList());
+        assertEquals("wrong number of errors", 1, errors1.messages.size());
+        assertEquals("wrong message", "unknown command: bogus",
+                     errors1.messages.get(0));
+        assertEquals("wrong number of errors", 1, errors2.messages.size());
+        assertEquals("wrong message", "Invalid argument.",
+                     errors2.messages.get(0));
+    }
+
+    @Test
+    public void testErrorStopsOutput() {
+        ErrorList errors = new ErrorList();
+        String result =
+            new Formatter().format("\\textheight{1}one\n\ntwo\n\nthree"
+                                   + "\\endnote{x}\n\n\\indent{x}", errors);
+        assertEquals("output written before a fatal error", "", result);
+        assertEquals("wrong errors", "[Invalid argument.]",
+                     errors.messages.toString());
+    }
+
+    @Test
+    public void testConcurrentEndnotes() {
+        StringBuilder text = new StringBuilder("\\textheight{7}");
+        for (int i = 0; i < 60; i += 1) {
+            text.append("Word ").append(i).append(" of the main text.");
+            text.append("\\endnote{Note ").append(i);
+            if (i % 5 == 0) {
+                text.append(" \\parindent{").append(i % 11)
+                    .append("}\\textwidth{").append(20 + i).append("}");
+            }
+            if (i % 17 == 0) {
+                text.append(" \\parskip{2}\\bogus\\nofill\\textheight{3}");
+            }
+            text.append(" has some words.\n\nand two paragraphs.}");
+            text.append(i % 3 == 0 ? "\n\n" : " ");
+        }
+        String doc = text.toString();
+        assertEquals("concurrent endnotes differ",
+                     formatEndnotes(doc, false), formatEndnotes(doc, true));
+        assertEquals("concurrent endnotes differ",
+                     formatEndnotes(doc + "\\endnote{\\endnote{x}}", false),
+                     formatEndnotes(doc + "\\endnote{\\endnote{x}}", true));
+    }
+
+    /** Returns the errors and output from formatting TEXT, formatting
+     *  endnotes in the background iff CONCURRENT. */
+    private String formatEndnotes(String text, boolean concurrent) {
+        StringWriter output = new StringWriter();
+        ErrorList errors = new ErrorList();
+        Controller controller = new Controller(new PrintWriter(output),
+                                               errors);
+        controller.setConcurrentEndnotes(concurrent);
+        try {
+            new InputParser(text, controller).process();
+        } catch (FormatException e) {
+            errors.report(e.getMessage());
+        }
+        return errors.messages + output.toString();
+    }
+
+    @Test
+    public void testPoolConcurrency() throws InterruptedException {
+        final FormatterPool pool = new FormatterPool(2);
+        final String expected = new Formatter().format(DOCUMENT,
+                                                       new ErrorList());
+        final List<String> results = new ArrayList<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i += 1) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < 50; k += 1) {
+                        String r = pool.format(DOCUMENT, new ErrorList());
+                        synchronized (results) {
+                            results.add(r);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals("missing results", 200, results.size());
+        for (String r : results) {
+            assertEquals("wrong concurrent output", expected, r);
+        }
+    }
+
+    /** A small document exercising most commands. */
+    private static final String DOCUMENT =
+        "\\textwidth{30}\\parindent{2}This is a small document that should"
+        + " be filled and justified\\endnote{A note.} across lines.\n\n"
+        + "\\nofill A second   paragraph\nwith two lines.\n";
+
+}
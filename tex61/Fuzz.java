@@ -0,0 +1,483 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/** A differential fuzzer that checks the optimized ways of formatting a
+ *  document against the reference way.  The reference is the Reference
+ *  engine, the original formatter kept apart from the code it checks:
+ *  regular-expression tokens, lines built as Strings, endnotes formatted
+ *  in turn at the end, and everything printed in one piece.  The
+ *  optimized engines are the Formatter (with its Lexer, concurrent
+ *  endnotes, and unfilled lines copied whole), the Formatter keeping a
+ *  SourceMap, and formatting in Shards.  Documents come from a small
+ *  random grammar of .tx input that favors the odd cases: negative
+ *  paragraph indentation, commands in endnotes, paragraph skips at the
+ *  tops of pages, unfilled lines with odd blanks, errors, and so on.
+ *  Two differences from the original are intended, and are counted
+ *  rather than reported: documents that nest arguments more than one
+ *  level deep, which the original rejects, are skipped; and when an
+ *  error stops the formatting, the engines in PRINTS_PLACED_LINES, which
+ *  print the lines placed before it where the original prints nothing,
+ *  are checked on their errors only.  If the error is a crash (an
+ *  exception other than a FormatException, such as the original's
+ *  NumberFormatException on \textwidth without an argument), they are
+ *  checked on the exception only, since a Shard that crashes loses the
+ *  errors it found before.  Any document on which the engines otherwise
+ *  disagree is shrunk to a minimal one that still shows the
+ *  disagreement.
+ *  Usage: java tex61.Fuzz [RUNS [SEED]]
+ *  @author Jason Qiu
+ */
+class Fuzz {
+
+    /** Check RUNS (ARGS[0], default 100000) random documents, made from
+     *  seed ARGS[1] (default: random), printing a minimal reproducer and
+     *  exiting with status 1 if any engines disagree. */
+    public static void main(String[] args) {
+        long runs = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_RUNS;
+        long seed = args.length > 1 ? Long.parseLong(args[1])
+            : new Random().nextLong();
+        System.out.printf("Fuzzing %d documents from seed %d%n", runs, seed);
+        Fuzz fuzz = new Fuzz(seed);
+        long skipped = 0, stopped = 0;
+        for (long i = 1; i <= runs; i += 1) {
+            String text = fuzz.generate();
+            if (!withinReference(text)) {
+                skipped += 1;
+                continue;
+            }
+            Result expected = reference(text);
+            if (expected.stopped) {
+                stopped += 1;
+            }
+            String engine = fuzz.mismatch(text, expected);
+            if (engine != null) {
+                String small = fuzz.shrink(text);
+                engine = fuzz.mismatch(small);
+                System.out.printf("Document %d: %s differs from the "
+                                  + "reference.%nMinimal input: \"%s\"%n"
+                                  + "Reference:%n%s%n%s:%n%s%n", i, engine,
+                                  escape(small), reference(small), engine,
+                                  fuzz.format(engine, small));
+                System.exit(1);
+            }
+            if (i % PROGRESS == 0) {
+                System.out.printf("%d documents checked%n", i);
+            }
+        }
+        System.out.printf("All %d documents agree, apart from the intended "
+                          + "differences:%n  %d skipped for nesting "
+                          + "arguments too deeply for the original;%n"
+                          + "  %d stopped by an error, on which %s were "
+                          + "checked on their errors only (or exception, "
+                          + "if it crashed).%n",
+                          runs, skipped, stopped,
+                          Arrays.toString(PRINTS_PLACED_LINES));
+    }
+
+    /** A new Fuzz whose documents are generated from SEED. */
+    Fuzz(long seed) {
+        _random = new Random(seed);
+        _mapped.setSourceMap(new SourceMap());
+    }
+
+    /** Returns a new random document.  One in ERROR_ODDS documents
+     *  has an error inserted at a random place, so that most of them
+     *  are formatted to the end. */
+    String generate() {
+        StringBuilder text = new StringBuilder();
+        document(text, false, _random.nextInt(MAX_PIECES));
+        if (_random.nextInt(ERROR_ODDS) == 0) {
+            text.insert(_random.nextInt(text.length() + 1), pick(ERRORS));
+        }
+        return text.toString();
+    }
+
+    /** Returns the name of the first engine whose result of formatting
+     *  TEXT differs from the reference, or null if all agree or TEXT
+     *  nests arguments too deeply for the reference. */
+    String mismatch(String text) {
+        if (!withinReference(text)) {
+            return null;
+        }
+        return mismatch(text, reference(text));
+    }
+
+    /** Returns the name of the first engine whose result of formatting
+     *  TEXT differs from EXPECTED, the reference's, or null if all
+     *  agree. */
+    private String mismatch(String text, Result expected) {
+        for (String engine : ENGINES) {
+            if (!agrees(engine, format(engine, text), expected)) {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+    /** Returns true iff RESULT, from ENGINE, agrees with EXPECTED, the
+     *  reference's result for the same document.  If an error stopped the
+     *  reference, only the errors of the engines in PRINTS_PLACED_LINES
+     *  are compared, and if it crashed, only the exception. */
+    private static boolean agrees(String engine, Result result,
+                                  Result expected) {
+        if (!expected.stopped
+            || !Arrays.asList(PRINTS_PLACED_LINES).contains(engine)) {
+            return expected.toString().equals(result.toString());
+        } else if (expected.crashed) {
+            return result.crashed
+                && expected.lastError().equals(result.lastError());
+        } else {
+            return expected._errors.equals(result._errors);
+        }
+    }
+
+    /** Returns the result of formatting TEXT with ENGINE. */
+    Result format(String engine, String text) {
+        Result result = new Result();
+        try {
+            switch (engine) {
+            case "Formatter":
+                formatted(_formatter, text, result);
+                break;
+            case "Formatter with SourceMap":
+                formatted(_mapped, text, result);
+                break;
+            case "Shards of one paragraph":
+                sharded(text, 1, result);
+                break;
+            case "Shards of 64 characters":
+                sharded(text, SHARD_SIZE, result);
+                break;
+            default:
+                throw new IllegalArgumentException(engine);
+            }
+        } catch (RuntimeException e) {
+            result.report(e.toString());
+            result.stopped = result.crashed = true;
+        }
+        return result;
+    }
+
+    /** Returns the result of formatting TEXT with the Reference
+     *  engine. */
+    static Result reference(String text) {
+        Result result = new Result();
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        try {
+            result.stopped = !Reference.format(text, out, result);
+        } catch (RuntimeException e) {
+            result.report(e.toString());
+            result.stopped = result.crashed = true;
+        }
+        out.flush();
+        result.output = output.toString();
+        return result;
+    }
+
+    /** Returns true iff TEXT nests unescaped braces at most two deep,
+     *  so that no argument (including one that runs on because of a
+     *  missing brace) has more than the one level of nesting that the
+     *  reference can match. */
+    static boolean withinReference(String text) {
+        int depth = 0;
+        for (int i = 0; i < text.length(); i += 1) {
+            switch (text.charAt(i)) {
+            case '\\':
+                i += 1;
+                break;
+            case '{':
+                depth += 1;
+                if (depth > 2) {
+                    return false;
+                }
+                break;
+            case '}':
+                depth = Math.max(0, depth - 1);
+                break;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** Returns a smallest document (in the sense that removing any one
+     *  character changes the outcome) that can be made by deleting
+     *  characters from TEXT and on which some engine disagrees with the
+     *  reference, as it does on TEXT. */
+    String shrink(String text) {
+        return shrink(text, new Predicate<String>() {
+            @Override
+            public boolean test(String candidate) {
+                return mismatch(candidate) != null;
+            }
+        });
+    }
+
+    /** Returns a smallest string that can be made by deleting characters
+     *  from TEXT, and that satisfies FAILING, as TEXT does.  Tries
+     *  deleting runs of characters, halving the length of the runs when
+     *  none can be deleted. */
+    static String shrink(String text, Predicate<String> failing) {
+        String best = text;
+        int chunk = Math.max(1, best.length() / 2);
+        while (true) {
+            boolean deleted = false;
+            for (int i = 0; i + chunk <= best.length(); ) {
+                String candidate =
+                    best.substring(0, i) + best.substring(i + chunk);
+                if (failing.test(candidate)) {
+                    best = candidate;
+                    deleted = true;
+                } else {
+                    i += chunk;
+                }
+            }
+            if (!deleted) {
+                if (chunk == 1) {
+                    return best;
+                }
+                chunk /= 2;
+            }
+        }
+    }
+
+    /** The outcome of formatting a document: its errors and output. */
+    static class Result implements ErrorSink {
+
+        @Override
+        public void report(String msg) {
+            _errors.add(msg);
+        }
+
+        @Override
+        public String toString() {
+            return _errors + "\n" + output;
+        }
+
+        /** Returns the last error message, or null if there is none. */
+        String lastError() {
+            return _errors.isEmpty() ? null : _errors.get(_errors.size() - 1);
+        }
+
+        /** The output. */
+        private String output = "";
+        /** True iff an error stopped the formatting. */
+        private boolean stopped;
+        /** True iff that error was an exception other than a
+         *  FormatException. */
+        private boolean crashed;
+        /** The error messages. */
+        private final List<String> _errors = new ArrayList<String>();
+    }
+
+    /** Format TEXT with FORMATTER, recording the outcome, including the
+     *  output written before any exception, in RESULT. */
+    private static void formatted(Formatter formatter, String text,
+                                  Result result) {
+        StringWriter output = new StringWriter();
+        try {
+            formatter.format(new StringReader(text), output, result);
+        } catch (IOException e) {
+            throw new AssertionError("I/O error on a string", e);
+        } finally {
+            result.output = output.toString();
+        }
+    }
+
+    /** Format TEXT in Shards of at least SIZE characters, formatted one
+     *  after another in this process, recording the outcome in
+     *  RESULT. */
+    private static void sharded(String text, int size, Result result) {
+        List<CompletableFuture<Shard.Result>> results =
+            new ArrayList<CompletableFuture<Shard.Result>>();
+        for (Shard shard : Shard.split(text, size)) {
+            results.add(CompletableFuture.completedFuture(shard.format()));
+        }
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        try {
+            new ShardCoordinator(1).collect(results, out, result);
+        } catch (IOException e) {
+            throw new AssertionError("completed Shard failed", e);
+        } finally {
+            out.flush();
+            result.output = output.toString();
+        }
+    }
+
+    /** Append a random sequence of PIECES pieces of text to OUT, as the
+     *  text of an endnote iff IN_ENDNOTE. */
+    private void document(StringBuilder out, boolean inEndnote, int pieces) {
+        for (int i = 0; i < pieces; i += 1) {
+            int choice = _random.nextInt(100);
+            if (choice < 35) {
+                word(out);
+            } else if (choice < 55) {
+                out.append(pick(BLANKS));
+            } else if (choice < 67) {
+                out.append(pick(NEWLINES));
+            } else if (choice < 88 || (inEndnote && choice < 96)) {
+                command(out, inEndnote);
+            } else if (choice < 92 || inEndnote) {
+                listing(out);
+            } else {
+                out.append("\\endnote{");
+                document(out, true, _random.nextInt(MAX_PIECES / 4));
+                out.append('}');
+            }
+        }
+    }
+
+    /** Append a random word, possibly containing escaped characters, to
+     *  OUT. */
+    private void word(StringBuilder out) {
+        int length = 1 + _random.nextInt(_random.nextInt(4) == 0 ? 20 : 8);
+        for (int i = 0; i < length; i += 1) {
+            if (_random.nextInt(30) == 0) {
+                out.append(pick(ESCAPES));
+            } else {
+                out.append((char) ('a' + _random.nextInt(26)));
+            }
+        }
+    }
+
+    /** Append to OUT random unfilled lines, such as those of a listing
+     *  or table, with blanks at their starts, ends, and between their
+     *  words. */
+    private void listing(StringBuilder out) {
+        out.append("\\nofill").append(pick(NEWLINES));
+        for (int n = 1 + _random.nextInt(8); n > 0; n -= 1) {
+            for (int w = _random.nextInt(5); w >= 0; w -= 1) {
+                if (_random.nextInt(3) == 0) {
+                    out.append(pick(BLANKS));
+                }
+                word(out);
+                out.append(pick(BLANKS));
+            }
+            out.setLength(out.length() - (_random.nextInt(3) == 0 ? 0 : 1));
+            out.append(pick(NEWLINES));
+        }
+        if (_random.nextBoolean()) {
+            out.append("\\fill");
+        }
+    }
+
+    /** Append a random command to OUT, one that may appear in an endnote
+     *  iff IN_ENDNOTE. */
+    private void command(StringBuilder out, boolean inEndnote) {
+        switch (_random.nextInt(11)) {
+        case 0:
+            out.append("\\indent{").append(_random.nextInt(8)).append('}');
+            break;
+        case 1:
+            out.append("\\parindent{").append(_random.nextInt(12) - 4)
+                .append('}');
+            break;
+        case 2:
+            out.append("\\textwidth{")
+                .append(_random.nextInt(4) == 0 ? _random.nextInt(10)
+                        : 10 + _random.nextInt(60))
+                .append('}');
+            break;
+        case 3:
+            out.append("\\textheight{")
+                .append(inEndnote ? _random.nextInt(20)
+                        : 1 + _random.nextInt(12))
+                .append('}');
+            break;
+        case 4:
+            out.append("\\parskip{").append(_random.nextInt(4)).append('}');
+            break;
+        case 5:
+            out.append("\\nofill");
+            break;
+        case 6:
+            out.append("\\fill");
+            break;
+        case 7:
+            out.append("\\justify");
+            break;
+        case 8:
+            out.append("\\nojustify");
+            break;
+        case 9:
+            out.append(_random.nextInt(4) == 0 ? "\\bogus{1}" : "\\bogus");
+            break;
+        default:
+            out.append("\\indent{").append(_random.nextInt(3))
+                .append("}\\parskip{").append(_random.nextInt(3))
+                .append('}');
+            break;
+        }
+    }
+
+    /** Returns a random member of CHOICES. */
+    private String pick(String[] choices) {
+        return choices[_random.nextInt(choices.length)];
+    }
+
+    /** Returns TEXT with its special characters written as escape
+     *  sequences of Java strings. */
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"")
+            .replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t")
+            .replace("\f", "\\f");
+    }
+
+    /** Names of the engines checked against the reference. */
+    private static final String[] ENGINES = {
+        "Formatter", "Formatter with SourceMap", "Shards of one paragraph",
+        "Shards of 64 characters",
+    };
+    /** Engines that print the lines placed before an error that stops
+     *  the formatting, rather than nothing, as the original does. */
+    private static final String[] PRINTS_PLACED_LINES = {
+        "Shards of one paragraph", "Shards of 64 characters",
+    };
+    /** Runs of blanks. */
+    private static final String[] BLANKS = { " ", " ", "\t", "   ", " \t " };
+    /** Line ends and paragraph breaks. */
+    private static final String[] NEWLINES = {
+        "\n", "\n", "\n\n", "\n\n\n", "\r\n", "\n \n", "\r\n\r\n",
+    };
+    /** Escaped characters. */
+    private static final String[] ESCAPES = { "\\{", "\\}", "\\\\", "\\ " };
+    /** Erroneous text, including commands with missing or bad
+     *  arguments. */
+    private static final String[] ERRORS = {
+        "{", "}", "\\", "\\1", "{group}", "{a{b}c}",
+        "\\endnote{unended", "\\endnote{\\endnote{nested}}", "\\indent",
+        "\\textwidth{x}", "\\indent{-1}", "\\textheight{0}", "\\parskip{}",
+        "\\parindent{-x}", "\\endnote", "\\textwidth",
+    };
+    /** Default number of documents checked. */
+    private static final long DEFAULT_RUNS = 100000;
+    /** Number of documents between progress reports. */
+    private static final long PROGRESS = 10000;
+    /** One in this many documents has an error. */
+    private static final int ERROR_ODDS = 4;
+    /** Largest number of pieces in a document. */
+    private static final int MAX_PIECES = 120;
+    /** Size of Shards of the last engine. */
+    private static final int SHARD_SIZE = 64;
+
+    /** Source of randomness. */
+    private final Random _random;
+    /** The Formatter engine. */
+    private final Formatter _formatter = new Formatter();
+    /** The Formatter engine that keeps a SourceMap. */
+    private final Formatter _mapped = new Formatter();
+
+}
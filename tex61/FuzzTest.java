@@ -0,0 +1,66 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+/** Tests of the differential fuzzer, and a short run of it.
+ *  @author Jason Qiu
+ */
+public class FuzzTest {
+
+    @Test
+    public void testEnginesAgree() {
+        Fuzz fuzz = new Fuzz(61);
+        for (int i = 0; i < 500; i += 1) {
+            String text = fuzz.generate();
+            assertNull("engines disagree on \"" + text + "\"",
+                       fuzz.mismatch(text));
+        }
+    }
+
+    @Test
+    public void testOddCases() {
+        Fuzz fuzz = new Fuzz(0);
+        String[] cases = {
+            "\\parindent{-3}\\indent{2}negative paragraph indentation",
+            "main\\endnote{\\textheight{1}ignored\n\nin an endnote}\n\nmore",
+            "\\textheight{2}\\parskip{3}one\n\ntwo\n\nthree\n\nfour",
+            "\\nofill a  \n b\n\n\\fill c",
+            "\\indent",
+            "\\endnote{\\endnote{x}}",
+            "one\n\ntwo\\endnote{x}\n\n\\textwidth{x}",
+        };
+        for (String text : cases) {
+            assertNull("engines disagree on \"" + text + "\"",
+                       fuzz.mismatch(text));
+        }
+    }
+
+    @Test
+    public void testShrink() {
+        String small = Fuzz.shrink("a\\textwidth{30}bb X cc\n\nY dd",
+                                   new Predicate<String>() {
+                @Override
+                public boolean test(String text) {
+                    return text.indexOf('X') >= 0
+                        && text.indexOf('Y') > text.indexOf('X');
+                }
+            });
+        assertEquals("not shrunk to a minimal string", "XY", small);
+    }
+
+    @Test
+    public void testWithinReference() {
+        assertTrue(Fuzz.withinReference("\\endnote{a{b}c}{d}"));
+        assertTrue(Fuzz.withinReference("\\endnote{a\\{\\{\\{b}"));
+        assertFalse(Fuzz.withinReference("\\endnote{a{b{c}}}"));
+        assertFalse(Fuzz.withinReference("\\endnote{a \\textwidth{{3}"));
+    }
+
+}
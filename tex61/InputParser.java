@@ -3,9 +3,9 @@ package tex61;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 import java.util.regex.MatchResult;
+import java.io.IOException;
 import java.io.Reader;
-
-import static tex61.FormatException.reportError;
+import java.io.StringReader;
 
 /** Reads commands and text from an input source and send the results
  *  to a designated Controller. This essentially breaks the input down
@@ -14,32 +14,6 @@ import static tex61.FormatException.reportError;
  */
 class InputParser {
 
-    /** Matches text between { } in a command, including the last
-     *  }, but not the opening {.  When matched, group 1 is the matched
-     *  text.  Always matches at least one character against a non-empty
-     *  string or input source. If it matches and group 1 is null, the
-     *  argument was not well-formed (the final } was missing or the
-     *  argument list was nested too deeply). */
-    private static final Pattern BALANCED_TEXT =
-            Pattern.compile("(?s)((?:\\\\.|[^\\\\{}]"
-                    + "|[{](?:\\\\.|[^\\\\{}])*[}])*)"
-                    + "\\}"
-                    + "|.");
-
-    /** Matches input to the text formatter.  Always matches something
-     *  in a non-empty string or input source.  After matching, one or
-     *  more of the groups described by *_TOKEN declarations will
-     *  be non-null.  See these declarations for descriptions of what
-     *  this pattern matches.  To test whether .group(*_TOKEN) is null
-     *  quickly, check for .end(*_TOKEN) > -1).  */
-    private static final Pattern INPUT_PATTERN =
-            Pattern.compile("(?s)(\\p{Blank}+)"
-                    + "|(\\r?\\n((?:\\r?\\n)+)?)"
-                    + "|\\\\([\\p{Blank}{}\\\\])"
-                    + "|\\\\(\\p{Alpha}+)([{]?)"
-                    + "|((?:[^\\p{Blank}\\r\\n\\\\{}]+))"
-                    + "|(.)");
-
     /** Symbolic names for the groups in INPUT_PATTERN. */
     private static final int
         /** Blank or tab. */
@@ -67,65 +41,125 @@ class InputParser {
     /** A new InputParser taking input from READER and sending tokens to
      *  OUT. */
     InputParser(Reader reader, Controller out) {
-        _input = new Scanner(reader);
+        _lexer = new Lexer(reader);
+        _reader = reader;
         _out = out;
     }
 
     /** A new InputParser whose input is TEXT and that sends tokens to
      *  OUT. */
     InputParser(String text, Controller out) {
-        _input = new Scanner(text);
-        _out = out;
+        this(new StringReader(text), out);
+    }
+
+    /** Take further input from READER, abandoning any unprocessed input
+     *  from the previous source, and starting at offset 0 of its
+     *  document. */
+    void reset(Reader reader) {
+        _reader = reader;
+        _base = 0;
+        _prefix = 0;
+        _lineStart = false;
+        if (_scanner == null) {
+            _lexer.reset(reader);
+        } else {
+            _scanner = new Scanner(reader);
+        }
+    }
+
+    /** Iff ON, break input into tokens by matching INPUT_PATTERN with a
+     *  Scanner, rather than with my Lexer.  The Scanner is much slower,
+     *  and is kept as the reference against which the Lexer is checked.
+     *  Must be called before any input is processed. */
+    void useScanner(boolean on) {
+        _scanner = on ? new Scanner(_reader) : null;
+        _lexer.reset(_reader);
+    }
+
+    /** Iff ON, treat my input as a part of a document followed by more,
+     *  non-blank input, so that whitespace at its end is processed rather
+     *  than ignored.  Only a Lexer (not a Scanner) supports this. */
+    void setFollowed(boolean on) {
+        _lexer.setFollowed(on);
+    }
+
+    /** Treat my input as starting at offset BASE of its document, when
+     *  giving the source offsets of text to my Controller.  Only a Lexer
+     *  (not a Scanner) supplies offsets. */
+    void setBaseOffset(long base) {
+        setBaseOffset(base, 0);
+    }
+
+    /** Treat my input, after its first PREFIX characters, which are not
+     *  part of its document, as starting at offset BASE of its document.
+     *  The PREFIX characters are given offset BASE, as if they were
+     *  inserted there. */
+    void setBaseOffset(long base, int prefix) {
+        _base = base;
+        _prefix = prefix;
+    }
+
+    /** Returns the number of characters of input consumed so far, or 0
+     *  if a Scanner is in use. */
+    long offset() {
+        return _scanner == null ? _lexer.offset() : 0;
+    }
+
+    /** Returns the IOException last thrown by my input source while
+     *  reading, or null if there was none. */
+    IOException ioException() {
+        if (_scanner == null) {
+            return _lexer.ioException();
+        }
+        return _scanner.ioException();
     }
 
     /** Break all input source text into tokens, and send them to our
      *  output controller.  Finishes by calling .close on the controller.
      */
     void process() {
-        while (_input.hasNext()) {
-            _input.findWithinHorizon(INPUT_PATTERN, 0);
-            MatchResult token = _input.match();
-            if (token.end(TEXT_TOKEN) > -1) {
-                _out.addText(token.group(TEXT_TOKEN));
-            } else if (token.end(BLANK_TOKEN) > -1) {
+        for (int kind = nextToken(); kind != Lexer.EOF; kind = nextToken()) {
+            switch (kind) {
+            case Lexer.TEXT:
+            case Lexer.ESCAPED_CHAR:
+                _out.addText(_token, _start, _end);
+                break;
+            case Lexer.BLANK:
                 _out.endWord();
-            } else if (token.end(EOP_TOKEN) > -1) {
+                break;
+            case Lexer.EOP:
                 _out.addNewline();
                 _out.endWord();
                 _out.endParagraph();
-            } else if (token.end(EOL_TOKEN) > -1) {
+                break;
+            case Lexer.EOL:
                 _out.addNewline();
                 _out.endWord();
-            } else if (token.end(ESCAPED_CHAR_TOKEN) > -1) {
-                _out.addText(token.group(ESCAPED_CHAR_TOKEN));
-            } else if (token.end(COMMAND_ARG_TOKEN) > -1) {
-                if (token.group(COMMAND_ARG_TOKEN).equals("")) {
-                    processCommand(token.group(COMMAND_TOKEN), null);
-                } else {
-                    if (_input.findWithinHorizon(BALANCED_TEXT, 0) == null) {
-                        throw new FormatException("Command not well formed.");
-                    }
-                    MatchResult arg = _input.match();
-                    if (arg.group(1) == null) {
-                        throw new FormatException("Command not well formed.");
-                    }
-                    if (token.group(COMMAND_TOKEN).equals("textheight")
-                            && arg.group(1).equals("0")) {
-                        throw new FormatException("Invalid argument.");
-                    }
-                    if (!token.group(COMMAND_TOKEN).equals("endnote")
-                            && !arg.group(1).matches("\\d+")) {
-                        if (!(arg.group(1).matches("-\\d+") && token.group(
-                                COMMAND_TOKEN).equals("parindent"))) {
-                            throw new FormatException
-                            ("Invalid argument.");
-                        }
-                    }
-                    processCommand(token.group(COMMAND_TOKEN), arg.group(1));
+                break;
+            case Lexer.LINE:
+                _out.addUnfilledLine(_token, _start, _end);
+                break;
+            case Lexer.COMMAND:
+                String command = _token;
+                if (!_hasArgument) {
+                    processCommand(command, null);
+                    break;
+                }
+                if (command.equals("endnote")) {
+                    argument(_out.startEndnote(_start, _end));
+                    _out.finishEndnote();
+                    break;
                 }
-            } else if (token.end(COMMAND_TOKEN) > -1) {
-                processCommand(token.group(COMMAND_TOKEN), null);
-            } else if (token.end(ERROR_TOKEN) > -1) {
+                String arg = argument();
+                if (command.equals("textheight") && arg.equals("0")) {
+                    throw new FormatException("Invalid argument.");
+                }
+                if (!isNumber(arg, command.equals("parindent"))) {
+                    throw new FormatException("Invalid argument.");
+                }
+                processCommand(command, arg);
+                break;
+            default:
                 throw new FormatException("Input contains invalid tokens.");
             }
         }
@@ -136,54 +170,45 @@ class InputParser {
 
     /** The process method for endnotes. */
     void processEndnote() {
-        while (_input.hasNext()) {
-            _input.findWithinHorizon(INPUT_PATTERN, 0);
-            MatchResult token = _input.match();
-            if (token.end(TEXT_TOKEN) > -1) {
-                _out.addText(token.group(TEXT_TOKEN));
-            } else if (token.end(BLANK_TOKEN) > -1) {
+        for (int kind = nextToken(); kind != Lexer.EOF; kind = nextToken()) {
+            switch (kind) {
+            case Lexer.TEXT:
+            case Lexer.ESCAPED_CHAR:
+                _out.addText(_token, _start, _end);
+                break;
+            case Lexer.BLANK:
                 _out.endWord();
-            } else if (token.end(EOP_TOKEN) > -1) {
+                break;
+            case Lexer.EOP:
                 _out.addNewline();
                 _out.endWord();
                 _out.endParagraph();
-            } else if (token.end(EOL_TOKEN) > -1) {
+                break;
+            case Lexer.EOL:
                 _out.addNewline();
                 _out.endWord();
-            } else if (token.end(ESCAPED_CHAR_TOKEN) > -1) {
-                _out.addText(token.group(ESCAPED_CHAR_TOKEN));
-            } else if (token.end(COMMAND_ARG_TOKEN) > -1) {
-                if (token.group(COMMAND_TOKEN).equals("endnote")) {
+                break;
+            case Lexer.LINE:
+                _out.addUnfilledLine(_token, _start, _end);
+                break;
+            case Lexer.COMMAND:
+                String command = _token;
+                if (command.equals("endnote")) {
                     throw new FormatException("Cannot write endnotes in "
                             + "an endnote");
-                } else if (token.group(COMMAND_ARG_TOKEN).equals("")) {
-                    processCommand(token.group(COMMAND_TOKEN), null);
-                } else {
-                    if (_input.findWithinHorizon(BALANCED_TEXT, 0) == null) {
-                        throw new FormatException("Command not well formed.");
-                    }
-                    if (!token.group(COMMAND_TOKEN).equals("textheight")) {
-                        MatchResult arg = _input.match();
-                        if (arg.group(1) == null) {
-                            throw new FormatException
-                            ("Command not well formed.");
-                        }
-                        if (!arg.group(1).matches("\\d+")) {
-                            if (!(arg.group(1).matches("-\\d+") && token.group(
-                                    COMMAND_TOKEN).equals("parindent"))) {
-                                throw new FormatException
-                                ("Invalid argument.");
-                            }
-                        }
-                        processCommand(token.group(COMMAND_TOKEN)
-                                , arg.group(1));
-                    }
+                } else if (!_hasArgument) {
+                    processCommand(command, null);
+                    break;
                 }
-            } else if (token.end(COMMAND_TOKEN) > -1) {
-                if (!token.group(COMMAND_TOKEN).equals("textheight")) {
-                    processCommand(token.group(COMMAND_TOKEN), null);
+                String arg = argument();
+                if (!command.equals("textheight")) {
+                    if (!isNumber(arg, command.equals("parindent"))) {
+                        throw new FormatException("Invalid argument.");
+                    }
+                    processCommand(command, arg);
                 }
-            } else if (token.end(ERROR_TOKEN) > -1) {
+                break;
+            default:
                 throw new FormatException("Input contains invalid tokens.");
             }
         }
@@ -191,6 +216,107 @@ class InputParser {
         _out.endParagraph();
     }
 
+    /** Returns the source offset of the next character of my input. */
+    private long sourceOffset() {
+        return _base + Math.max(0, _lexer.offset() - _prefix);
+    }
+
+    /** Consume the next token of input and return its kind, which is one
+     *  of the token kinds defined in Lexer.  Sets _token to the token's
+     *  text and _hasArgument as for Lexer.text and Lexer.hasArgument.
+     *  At the start of a line that my Controller would not fill, a line of
+     *  plain text is consumed whole as a LINE token, whose text is its
+     *  words separated by single blanks, as the Controller would have
+     *  joined them.  The Scanner does not do this. */
+    private int nextToken() {
+        if (_scanner == null) {
+            _start = sourceOffset();
+            int kind;
+            if (_lineStart && _out.acceptsUnfilledLine()
+                && _lexer.plainLine()) {
+                kind = Lexer.LINE;
+            } else {
+                kind = _lexer.next();
+            }
+            _lineStart = kind == Lexer.EOL || kind == Lexer.EOP
+                || (_lineStart && kind == Lexer.BLANK);
+            _end = sourceOffset();
+            _token = _lexer.text();
+            _hasArgument = _lexer.hasArgument();
+            return kind;
+        }
+        _token = null;
+        _hasArgument = false;
+        if (!_scanner.hasNext()) {
+            return Lexer.EOF;
+        }
+        _scanner.findWithinHorizon(Patterns.INPUT_PATTERN, 0);
+        MatchResult token = _scanner.match();
+        if (token.end(TEXT_TOKEN) > -1) {
+            _token = token.group(TEXT_TOKEN);
+            return Lexer.TEXT;
+        } else if (token.end(BLANK_TOKEN) > -1) {
+            return Lexer.BLANK;
+        } else if (token.end(EOP_TOKEN) > -1) {
+            return Lexer.EOP;
+        } else if (token.end(EOL_TOKEN) > -1) {
+            return Lexer.EOL;
+        } else if (token.end(ESCAPED_CHAR_TOKEN) > -1) {
+            _token = token.group(ESCAPED_CHAR_TOKEN);
+            return Lexer.ESCAPED_CHAR;
+        } else if (token.end(COMMAND_TOKEN) > -1) {
+            _token = token.group(COMMAND_TOKEN);
+            _hasArgument = !token.group(COMMAND_ARG_TOKEN).equals("");
+            return Lexer.COMMAND;
+        } else {
+            return Lexer.ERROR;
+        }
+    }
+
+    /** Consume the argument of the command just returned by nextToken,
+     *  which must have had one, and append it to DEST.  Throws a
+     *  FormatException if the argument is not well formed. */
+    private void argument(StringBuilder dest) {
+        if (_scanner == null) {
+            _lexer.argument(dest);
+        } else {
+            dest.append(argument());
+        }
+    }
+
+    /** Consume and return the argument of the command just returned by
+     *  nextToken, which must have had one.  Throws a FormatException if
+     *  the argument is not well formed.  With a Scanner, arguments may
+     *  contain only one level of nested { }. */
+    private String argument() {
+        if (_scanner == null) {
+            return _lexer.argument();
+        }
+        if (_scanner.findWithinHorizon(Patterns.BALANCED_TEXT, 0) == null) {
+            throw new FormatException("Command not well formed.");
+        }
+        MatchResult arg = _scanner.match();
+        if (arg.group(1) == null) {
+            throw new FormatException("Command not well formed.");
+        }
+        return arg.group(1);
+    }
+
+    /** Returns true iff ARG is one or more decimal digits, preceded by
+     *  a minus sign if it is SIGNED. */
+    static boolean isNumber(String arg, boolean signed) {
+        int start = signed && arg.startsWith("-") ? 1 : 0;
+        if (start == arg.length()) {
+            return false;
+        }
+        for (int i = start; i < arg.length(); i += 1) {
+            char c = arg.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
 
     /** Process \COMMAND{ARG} or (if ARG is null) \COMMAND.  Call the
      *  appropriate methods in our Controller (_out). */
@@ -225,10 +351,10 @@ class InputParser {
                 _out.setJustify(false);
                 break;
             case "endnote":
-                _out.formatEndnote(arg);
+                _out.formatEndnote(arg, _start, _end);
                 break;
             default:
-                reportError("unknown command: %s", command);
+                _out.reportError("unknown command: %s", command);
                 break;
             }
         } catch (FormatException e) {
@@ -237,8 +363,60 @@ class InputParser {
 
     }
 
+    /** The patterns used by a Scanner, compiled only when one is first
+     *  used, which is never in normal formatting: compiling them takes a
+     *  noticeable part of the startup time of a short run. */
+    private static class Patterns {
+        /** Matches text between { } in a command, including the last
+         *  }, but not the opening {.  When matched, group 1 is the
+         *  matched text.  Always matches at least one character against a
+         *  non-empty string or input source. If it matches and group 1 is
+         *  null, the argument was not well-formed (the final } was
+         *  missing or the argument list was nested too deeply). */
+        private static final Pattern BALANCED_TEXT =
+                Pattern.compile("(?s)((?:\\\\.|[^\\\\{}]"
+                        + "|[{](?:\\\\.|[^\\\\{}])*[}])*)"
+                        + "\\}"
+                        + "|.");
+
+        /** Matches input to the text formatter.  Always matches
+         *  something in a non-empty string or input source.  After
+         *  matching, one or more of the groups described by *_TOKEN
+         *  declarations will be non-null.  See these declarations for
+         *  descriptions of what this pattern matches.  To test whether
+         *  .group(*_TOKEN) is null quickly, check for .end(*_TOKEN) > -1).
+         */
+        private static final Pattern INPUT_PATTERN =
+                Pattern.compile("(?s)(\\p{Blank}+)"
+                        + "|(\\r?\\n((?:\\r?\\n)+)?)"
+                        + "|\\\\([\\p{Blank}{}\\\\])"
+                        + "|\\\\(\\p{Alpha}+)([{]?)"
+                        + "|((?:[^\\p{Blank}\\r\\n\\\\{}]+))"
+                        + "|(.)");
+    }
+
     /** My input source. */
-    private final Scanner _input;
+    private Reader _reader;
+    /** Breaks my input into tokens, unless _scanner is in use. */
+    private final Lexer _lexer;
+    /** Breaks my input into tokens by matching INPUT_PATTERN, or null if
+     *  _lexer is in use. */
+    private Scanner _scanner;
+    /** Text of the last token returned by nextToken. */
+    private String _token;
+    /** Source offsets of the start and end of the last token. */
+    private long _start, _end;
+    /** Offset within its document of the start of my input, after
+     *  _prefix. */
+    private long _base;
+    /** Number of characters at the start of my input that are not part
+     *  of its document. */
+    private int _prefix;
+    /** True iff the last token was a command followed by '{'. */
+    private boolean _hasArgument;
+    /** True iff only blanks separate the next token from the start of a
+     *  line. */
+    private boolean _lineStart;
     /** The Controller to which I send input tokens. */
     private Controller _out;
 
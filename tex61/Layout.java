@@ -0,0 +1,206 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/** The lines of a document in their final order, as placed by a
+ *  PageCollector, waiting to be printed.  Most lines are kept as text,
+ *  but a justified line is kept as just the characters of its words,
+ *  packed with those of the other justified lines, and the numbers of
+ *  its words, of its blanks of indentation, and of the blanks to spread
+ *  between its words.  It is rendered (its blanks distributed and its
+ *  words copied into one string) only when printed.  Rather than
+ *  being prefixed with a form feed, the first line of each page after
+ *  the first is marked, and gets its form feed as it is rendered.
+ *  As a List, a Layout holds its lines as they will be printed.
+ *  @author Jason Qiu
+ */
+class Layout extends AbstractList<String> {
+
+    /** Stands, in add, for the first justified line deferred but not yet
+     *  added. */
+    static final String JUSTIFIED = new String("");
+
+    /** Returns the number of my lines. */
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    /** Returns my line K, as it will be printed. */
+    @Override
+    public String get(int k) {
+        if (k < 0 || k >= _size) {
+            throw new IndexOutOfBoundsException("no line " + k);
+        }
+        StringBuilder line = new StringBuilder();
+        render(k, line);
+        return line.toString();
+    }
+
+    /** Add LINE at the end, on the current page. */
+    @Override
+    public boolean add(String line) {
+        add(line, false);
+        return true;
+    }
+
+    /** Add LINE at the end, starting a new page with it iff NEWPAGE.
+     *  LINE is either text or JUSTIFIED. */
+    void add(String line, boolean newPage) {
+        if (_size == _text.length) {
+            int n = 2 * _size;
+            _text = Arrays.copyOf(_text, n);
+            _record = Arrays.copyOf(_record, n);
+        }
+        if (line == JUSTIFIED) {
+            _text[_size] = null;
+            _record[_size] = _added;
+            _added += 1;
+        } else {
+            _text[_size] = line;
+        }
+        if (newPage) {
+            _pageStarts.set(_size);
+            _pageBreaks += 1;
+        }
+        _size += 1;
+    }
+
+    /** Defer the justified line made of WORDS, indented by INDENT blanks
+     *  and filling WIDTH columns, as by LineAssembler.justify, until it
+     *  is added as JUSTIFIED.  WORDS may change once this returns. */
+    void defer(List<String> words, int indent, int width) {
+        if (_deferred + 1 == _first.length) {
+            int n = 2 * _first.length;
+            _first = Arrays.copyOf(_first, n);
+            _indents = Arrays.copyOf(_indents, n);
+            _spares = Arrays.copyOf(_spares, n);
+        }
+        int lineSize = 0;
+        for (String word : words) {
+            if (_words == _wordEnds.length) {
+                _wordEnds = Arrays.copyOf(_wordEnds, 2 * _words);
+            }
+            int n = word.length();
+            if (_chars.length - _charCount < n) {
+                _chars = Arrays.copyOf(_chars,
+                                       Math.max(2 * _chars.length,
+                                                _charCount + n));
+            }
+            word.getChars(0, n, _chars, _charCount);
+            _charCount += n;
+            _wordEnds[_words] = _charCount;
+            _words += 1;
+            lineSize += n;
+        }
+        _indents[_deferred] = indent;
+        _spares[_deferred] = width - (indent + lineSize);
+        _deferred += 1;
+        _first[_deferred] = _words;
+    }
+
+    /** Returns the number of my lines that start pages, not counting
+     *  the first line of a document. */
+    int pageBreaks() {
+        return _pageBreaks;
+    }
+
+    /** Discard all my lines. */
+    @Override
+    public void clear() {
+        Arrays.fill(_text, 0, _size, null);
+        _size = _deferred = _added = _pageBreaks = _words = _charCount = 0;
+        _pageStarts.clear();
+    }
+
+    /** Print my lines to OUT, each followed by a line separator,
+     *  rendering them CHUNK_LINES at a time. */
+    void print(PrintWriter out) {
+        for (int from = 0; from < _size; from += CHUNK_LINES) {
+            out.write(render(from, Math.min(from + CHUNK_LINES, _size)));
+        }
+    }
+
+    /** Returns my lines FROM to TO - 1, each followed by a line
+     *  separator. */
+    private String render(int from, int to) {
+        StringBuilder text = new StringBuilder(LINE_ESTIMATE * (to - from));
+        for (int k = from; k < to; k += 1) {
+            render(k, text);
+            text.append(NEWLINE);
+        }
+        return text.toString();
+    }
+
+    /** Append my line K to TEXT. */
+    private void render(int k, StringBuilder text) {
+        if (_pageStarts.get(k)) {
+            text.append('\f');
+        }
+        if (_text[k] != null) {
+            text.append(_text[k]);
+            return;
+        }
+        int r = _record[k];
+        for (int i = 0; i < _indents[r]; i += 1) {
+            text.append(' ');
+        }
+        int first = _first[r], gaps = _first[r + 1] - first - 1;
+        int totalSpaces = 0;
+        for (int w = first; ; w += 1) {
+            int start = w == 0 ? 0 : _wordEnds[w - 1];
+            text.append(_chars, start, _wordEnds[w] - start);
+            if (w == first + gaps) {
+                break;
+            }
+            for (int n = LineAssembler.blanks(w - first + 1, gaps,
+                                              _spares[r]);
+                 totalSpaces < n; totalSpaces += 1) {
+                text.append(' ');
+            }
+        }
+    }
+
+    /** Most lines rendered as one piece. */
+    static final int CHUNK_LINES = 2048;
+    /** Initial number of lines and deferred lines I have room for. */
+    private static final int INITIAL_SIZE = 64;
+    /** Estimated length of a line, with its separator. */
+    private static final int LINE_ESTIMATE = 80;
+    /** Ends each line printed. */
+    private static final String NEWLINE = System.lineSeparator();
+
+    /** Number of my lines. */
+    private int _size;
+    /** Text of each of my lines, or null for a justified line. */
+    private String[] _text = new String[INITIAL_SIZE];
+    /** Deferred line rendered as each of my justified lines. */
+    private int[] _record = new int[INITIAL_SIZE];
+    /** My lines that start pages. */
+    private final BitSet _pageStarts = new BitSet();
+    /** Number of my lines that start pages. */
+    private int _pageBreaks;
+    /** Characters of the words of all deferred lines, in order. */
+    private char[] _chars = new char[INITIAL_SIZE * LINE_ESTIMATE];
+    /** Number of _chars used. */
+    private int _charCount;
+    /** Index in _chars just past each word of the deferred lines. */
+    private int[] _wordEnds = new int[INITIAL_SIZE];
+    /** Number of words of deferred lines. */
+    private int _words;
+    /** Number of the first word of each deferred line, and past the
+     *  last, the number of words. */
+    private int[] _first = new int[INITIAL_SIZE];
+    /** Indentation of each deferred line. */
+    private int[] _indents = new int[INITIAL_SIZE];
+    /** Blanks to distribute between the words of each deferred line. */
+    private int[] _spares = new int[INITIAL_SIZE];
+    /** Number of lines deferred. */
+    private int _deferred;
+    /** Number of deferred lines added. */
+    private int _added;
+}
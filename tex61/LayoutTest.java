@@ -0,0 +1,154 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of Layouts, with their deferred justified lines.
+ *  @author Jason Qiu
+ */
+public class LayoutTest {
+
+    @Test
+    public void testSameLines() {
+        for (int height : new int[] { 1, 3, 7, 40 }) {
+            List<String> expected = new ArrayList<String>();
+            Layout layout = new Layout();
+            assemble(new PageCollector(expected), height, 500);
+            assemble(new PageCollector(layout), height, 500);
+            assertEquals("wrong lines at height " + height, expected,
+                         layout);
+            assertEquals("wrong page count at height " + height,
+                         (expected.size() + height - 1) / height,
+                         layout.pageBreaks() + 1);
+        }
+    }
+
+    @Test
+    public void testPrint() {
+        for (int height : new int[] { 5, Layout.CHUNK_LINES + 1,
+                                      Integer.MAX_VALUE }) {
+            List<String> expected = new ArrayList<String>();
+            Layout layout = new Layout();
+            assemble(new PageCollector(expected), height, 8000);
+            assemble(new PageCollector(layout), height, 8000);
+            StringBuilder text = new StringBuilder();
+            for (String line : expected) {
+                text.append(line).append(System.lineSeparator());
+            }
+            assertEquals("wrong output at height " + height,
+                         text.toString(), print(layout));
+        }
+    }
+
+    @Test
+    public void testPages() {
+        String[] paragraphs = {
+            "one two three four five six",
+            "a bb ccc dddd eeeee ffffff ggggggg hh i jj kkk", "end",
+        };
+        String expected = lines(
+            "  one two three four", "five six", "", "",
+            "\f  a   bb  ccc   dddd", "eeeee ffffff ggggggg", "hh i jj kkk",
+            "", "\f  end");
+        List<String> lines = new ArrayList<String>();
+        small(new PageCollector(lines), paragraphs);
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        PageAssembler printer = new PagePrinter(out);
+        for (String line : lines) {
+            printer.addLine(line);
+        }
+        out.flush();
+        assertEquals("wrong output from the PageAssembler", expected,
+                     output.toString());
+        Layout layout = new Layout();
+        small(new PageCollector(layout), paragraphs);
+        assertEquals("wrong output from the Layout", expected,
+                     print(layout));
+    }
+
+    @Test
+    public void testClear() {
+        Layout layout = new Layout();
+        PageCollector pages = new PageCollector(layout);
+        assemble(pages, 4, 100);
+        pages.reset();
+        assertEquals("lines left after reset", 0, layout.size());
+        assertEquals("pages left after reset", 0, layout.pageBreaks());
+        List<String> expected = new ArrayList<String>();
+        assemble(new PageCollector(expected), 4, 100);
+        assemble(pages, 4, 100);
+        assertEquals("wrong lines after reset", expected, layout);
+    }
+
+    /** Send PARAGRAPHS paragraphs of words, some justified and some not,
+     *  to PAGES, at text height HEIGHT, with widow control. */
+    private void assemble(PageCollector pages, int height, int paragraphs) {
+        Random random = new Random(61);
+        pages.setWidowControl(true);
+        pages.setTextHeight(height);
+        LineAssembler assembler = new LineAssembler(pages);
+        assembler.setTextWidth(30);
+        assembler.setParSkip(1);
+        for (int p = 0; p < paragraphs; p += 1) {
+            assembler.setJustify(p % 5 != 4);
+            assembler.setParIndentation(p % 3 - 1);
+            for (int w = random.nextInt(40); w >= 0; w -= 1) {
+                assembler.addText(WORDS[random.nextInt(WORDS.length)]);
+                assembler.finishWord();
+            }
+            assembler.endParagraph();
+        }
+        pages.endParagraph();
+    }
+
+    /** Send PARAGRAPHS to PAGES, at text width 20, text height 4, and
+     *  paragraph indentation 2, with widow control. */
+    private void small(PageCollector pages, String[] paragraphs) {
+        pages.setWidowControl(true);
+        pages.setTextHeight(4);
+        LineAssembler assembler = new LineAssembler(pages);
+        assembler.setTextWidth(20);
+        assembler.setParIndentation(2);
+        for (String paragraph : paragraphs) {
+            for (String word : paragraph.split(" ")) {
+                assembler.addText(word);
+                assembler.finishWord();
+            }
+            assembler.endParagraph();
+        }
+        pages.endParagraph();
+    }
+
+    /** Returns LINES, each followed by a line separator. */
+    private String lines(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    /** Returns the output of printing LAYOUT. */
+    private String print(Layout layout) {
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        layout.print(out);
+        out.flush();
+        return output.toString();
+    }
+
+    /** Words of the paragraphs assembled. */
+    private static final String[] WORDS = {
+        "a", "layout", "keeps", "justified", "lines", "as", "words",
+        "until", "they", "are", "printed,", "extraordinarily", "late.",
+    };
+
+}
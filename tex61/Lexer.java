@@ -0,0 +1,457 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/** Breaks formatter input into the same tokens as InputParser's
+ *  INPUT_PATTERN, but without regular expressions.  Most input is plain
+ *  text, in which only blanks, tabs, ends of lines, \, {, and } are
+ *  interesting, so runs of text are skipped in bulk by a
+ *  DelimiterScanner rather than matched character by character.
+ *  As with a Scanner, input that contains nothing but whitespace from
+ *  some point on is treated as ending at that point.
+ *  @author Jason Qiu
+ */
+class Lexer {
+
+    /** Token kinds returned by next(). */
+    static final int
+        /** End of input (only whitespace remains). */
+        EOF = 0,
+        /** Blanks or tabs. */
+        BLANK = 1,
+        /** End of line. */
+        EOL = 2,
+        /** End of paragraph (>1 newline). */
+        EOP = 3,
+        /** \{, \}, \\, or \ .  text() is the character after the
+         *  backslash. */
+        ESCAPED_CHAR = 4,
+        /** Command (\<alphabetic characters>).  text() is the characters
+         *  after the backslash, and hasArgument() is true iff the command
+         *  was immediately followed by '{'. */
+        COMMAND = 5,
+        /** Segment of other text, which is text(). */
+        TEXT = 6,
+        /** A line of plain text, consumed whole by plainLine() rather than
+         *  returned by next(). */
+        LINE = 7,
+        /** A character that should not be here. */
+        ERROR = 8;
+
+    /** A new Lexer that takes its input from READER. */
+    Lexer(Reader reader) {
+        reset(reader);
+    }
+
+    /** Take further input from READER, abandoning any unprocessed input
+     *  from the previous source but keeping my buffer. */
+    void reset(Reader reader) {
+        _reader = reader;
+        _pos = _limit = 0;
+        _base = 0;
+        _nonWhite = -1;
+        _eof = false;
+        _ioException = null;
+        _text = null;
+        _hasArgument = false;
+        _followed = false;
+    }
+
+    /** Iff ON, treat my input as followed by more, non-blank input, so
+     *  that whitespace at its end is broken into tokens rather than
+     *  ignored.  This lets one part of a document be tokenized exactly as
+     *  it would be within the whole document. */
+    void setFollowed(boolean on) {
+        _followed = on;
+    }
+
+    /** Returns the number of characters of input consumed so far. */
+    long offset() {
+        return _base + _pos;
+    }
+
+    /** Returns the IOException last thrown by my input source while
+     *  reading, or null if there was none. */
+    IOException ioException() {
+        return _ioException;
+    }
+
+    /** Consume the next token of input and return its kind. */
+    int next() {
+        _text = null;
+        _hasArgument = false;
+        if (!hasMore()) {
+            return EOF;
+        }
+        switch (_buf[_pos]) {
+        case ' ': case '\t':
+            return blanks();
+        case '\n':
+            return newlines();
+        case '\r':
+            if (ensure(2) && _buf[_pos + 1] == '\n') {
+                return newlines();
+            }
+            _pos += 1;
+            return ERROR;
+        case '\\':
+            return backslash();
+        case '{': case '}':
+            _pos += 1;
+            return ERROR;
+        default:
+            return plainText();
+        }
+    }
+
+    /** If the input at _pos is the rest of a line of plain text (words
+     *  of characters other than \, {, and }, separated by blanks or tabs)
+     *  that has at least two words or ends in blanks, and is followed by a
+     *  line terminator and more input that is not whitespace, consume its
+     *  words and the blanks between them as a LINE token and return true.
+     *  Then text() is the words separated by single blanks, with a blank
+     *  at the end iff the line ends in blanks, which are left unconsumed,
+     *  along with the terminator.  Otherwise, consume nothing and return
+     *  false.  This lets an unfilled line, which would be broken into
+     *  words only to be joined again by single blanks, be copied in bulk,
+     *  with runs of text skipped by the DelimiterScanner. */
+    boolean plainLine() {
+        _text = null;
+        _hasArgument = false;
+        if (!ensure(1) || DelimiterScanner.isDelimiter(_buf[_pos])) {
+            return false;
+        }
+        int n = 0, words = 1, blanks = 0;
+        boolean single = true;
+        while (true) {
+            if (!ensure(n + 1)) {
+                return false;
+            }
+            char c = _buf[_pos + n];
+            if (c == ' ') {
+                single &= blanks == 0;
+                blanks += 1;
+                n += 1;
+            } else if (c == '\t') {
+                single = false;
+                blanks += 1;
+                n += 1;
+            } else if (c == '\n' || (c == '\r' && ensure(n + 2)
+                                     && _buf[_pos + n + 1] == '\n')) {
+                break;
+            } else if (DelimiterScanner.isDelimiter(c)) {
+                return false;
+            } else {
+                if (blanks > 0) {
+                    words += 1;
+                    blanks = 0;
+                }
+                n = DelimiterScanner.skipText(_buf, _pos + n, _limit) - _pos;
+            }
+        }
+        if ((words < 2 && blanks == 0)
+            || (!_followed && !nonWhiteAfter(n + endOfLine(n)))) {
+            return false;
+        }
+        int end = _pos + n - blanks;
+        StringBuilder line = new StringBuilder(end - _pos + 1);
+        if (single) {
+            line.append(_buf, _pos, end - _pos);
+        } else {
+            for (int i = _pos; i < end; ) {
+                if (isBlank(_buf[i])) {
+                    line.append(' ');
+                    while (isBlank(_buf[i])) {
+                        i += 1;
+                    }
+                } else {
+                    int k = DelimiterScanner.skipText(_buf, i, end);
+                    line.append(_buf, i, k - i);
+                    i = k;
+                }
+            }
+        }
+        if (blanks > 0) {
+            line.append(' ');
+        }
+        _text = line.toString();
+        _pos = end;
+        return true;
+    }
+
+    /** Returns the text of the last token, as described for its kind, or
+     *  null if it has none. */
+    String text() {
+        return _text;
+    }
+
+    /** True iff the last token was a COMMAND immediately followed by
+     *  '{'. */
+    boolean hasArgument() {
+        return _hasArgument;
+    }
+
+    /** Consume and return the argument of the last token, which must be a
+     *  COMMAND that hasArgument(): the text up to the matching }, which
+     *  is consumed but not returned.  Throws a FormatException if there
+     *  is no matching }. */
+    String argument() {
+        StringBuilder arg = new StringBuilder();
+        argument(arg);
+        return arg.toString();
+    }
+
+    /** Consume the argument of the last token, as for argument(), and
+     *  append it to DEST, or discard it if DEST is null.  The argument
+     *  may contain escaped characters and { } nested to any depth.  It is
+     *  scanned in one pass with a depth count and copied to DEST a buffer
+     *  at a time, so that it need not fit in my buffer. */
+    void argument(StringBuilder dest) {
+        int depth = 0;
+        int i = _pos;
+        while (true) {
+            if (i == _limit) {
+                consumeTo(i, dest);
+                if (!fill()) {
+                    throw notWellFormed();
+                }
+                i = _pos;
+            }
+            char c = _buf[i];
+            if (c == '\\') {
+                if (i + 1 == _limit) {
+                    consumeTo(i, dest);
+                    if (!ensure(2)) {
+                        throw notWellFormed();
+                    }
+                    i = _pos;
+                }
+                i += 2;
+            } else if (c == '{') {
+                depth += 1;
+                i += 1;
+            } else if (c != '}') {
+                i += 1;
+            } else if (depth > 0) {
+                depth -= 1;
+                i += 1;
+            } else {
+                consumeTo(i, dest);
+                _pos += 1;
+                return;
+            }
+        }
+    }
+
+    /** Consume _buf[_pos .. END-1], appending it to DEST unless DEST is
+     *  null. */
+    private void consumeTo(int end, StringBuilder dest) {
+        if (dest != null) {
+            dest.append(_buf, _pos, end - _pos);
+        }
+        _pos = end;
+    }
+
+    /** Returns the exception for an argument with no matching }. */
+    private FormatException notWellFormed() {
+        return new FormatException("Command not well formed.");
+    }
+
+    /** Consume a BLANK token starting at _pos. */
+    private int blanks() {
+        int n = 1;
+        while (ensure(n + 1) && isBlank(_buf[_pos + n])) {
+            n += 1;
+        }
+        _pos += n;
+        return BLANK;
+    }
+
+    /** Consume an EOL or EOP token starting at _pos. */
+    private int newlines() {
+        int n = endOfLine(0);
+        int extra = 0;
+        for (int k = endOfLine(n); k > 0; k = endOfLine(n)) {
+            n += k;
+            extra += 1;
+        }
+        _pos += n;
+        return extra > 0 ? EOP : EOL;
+    }
+
+    /** Returns the length of the line terminator (\n or \r\n) at
+     *  _buf[_pos + N], or 0 if there is none there. */
+    private int endOfLine(int n) {
+        if (!ensure(n + 1)) {
+            return 0;
+        } else if (_buf[_pos + n] == '\n') {
+            return 1;
+        } else if (_buf[_pos + n] == '\r' && ensure(n + 2)
+                   && _buf[_pos + n + 1] == '\n') {
+            return 2;
+        } else {
+            return 0;
+        }
+    }
+
+    /** Consume an ESCAPED_CHAR, COMMAND, or ERROR token starting with the
+     *  backslash at _pos. */
+    private int backslash() {
+        if (!ensure(2)) {
+            _pos += 1;
+            return ERROR;
+        }
+        char c = _buf[_pos + 1];
+        if (isBlank(c) || c == '{' || c == '}' || c == '\\') {
+            _text = String.valueOf(c);
+            _pos += 2;
+            return ESCAPED_CHAR;
+        } else if (isLetter(c)) {
+            int n = 2;
+            while (ensure(n + 1) && isLetter(_buf[_pos + n])) {
+                n += 1;
+            }
+            _text = new String(_buf, _pos + 1, n - 1);
+            if (ensure(n + 1) && _buf[_pos + n] == '{') {
+                _hasArgument = true;
+                n += 1;
+            }
+            _pos += n;
+            return COMMAND;
+        } else {
+            _pos += 1;
+            return ERROR;
+        }
+    }
+
+    /** Consume a TEXT token starting at _pos. */
+    private int plainText() {
+        int n = 1;
+        while (true) {
+            int end = DelimiterScanner.skipText(_buf, _pos + n, _limit);
+            n = end - _pos;
+            if (end < _limit || !fill()) {
+                break;
+            }
+        }
+        _text = new String(_buf, _pos, n);
+        _pos += n;
+        return TEXT;
+    }
+
+    /** True iff some non-whitespace character remains at or after
+     *  _pos. */
+    private boolean hasMore() {
+        if (_nonWhite >= _base + _pos) {
+            return true;
+        } else if (_followed) {
+            return ensure(1);
+        }
+        int n = 0;
+        while (true) {
+            for (; _pos + n < _limit; n += 1) {
+                if (!Character.isWhitespace(_buf[_pos + n])) {
+                    _nonWhite = _base + _pos + n;
+                    return true;
+                }
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /** True iff some non-whitespace character remains at or after
+     *  _buf[_pos + N]. */
+    private boolean nonWhiteAfter(int n) {
+        for (; ensure(n + 1); n += 1) {
+            if (!Character.isWhitespace(_buf[_pos + n])) {
+                _nonWhite = _base + _pos + n;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true iff at least K unconsumed characters are (or can be
+     *  made) available in _buf. */
+    private boolean ensure(int k) {
+        while (_limit - _pos < k) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Read more input into _buf, first moving its unconsumed characters
+     *  to the front, and enlarging it if they fill it.  Returns false iff
+     *  the input is exhausted. */
+    private boolean fill() {
+        if (_eof) {
+            return false;
+        }
+        if (_pos > 0) {
+            System.arraycopy(_buf, _pos, _buf, 0, _limit - _pos);
+            _base += _pos;
+            _limit -= _pos;
+            _pos = 0;
+        }
+        if (_limit == _buf.length) {
+            _buf = Arrays.copyOf(_buf, 2 * _buf.length);
+        }
+        try {
+            int n = _reader.read(_buf, _limit, _buf.length - _limit);
+            if (n < 0) {
+                _eof = true;
+                return false;
+            }
+            _limit += n;
+            return true;
+        } catch (IOException e) {
+            _ioException = e;
+            _eof = true;
+            return false;
+        }
+    }
+
+    /** True iff C is a blank or tab. */
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /** True iff C is an ASCII letter. */
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** Initial size of _buf. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** My input source. */
+    private Reader _reader;
+    /** Buffered input.  _buf[_pos .. _limit-1] is read but unconsumed. */
+    private char[] _buf = new char[BUFFER_SIZE];
+    /** Index in _buf of the next unconsumed character. */
+    private int _pos;
+    /** Index in _buf just past the last character read. */
+    private int _limit;
+    /** Offset in the input of _buf[0]. */
+    private long _base;
+    /** Offset in the input of a non-whitespace character known to be at
+     *  or after _pos, if >= _base + _pos. */
+    private long _nonWhite;
+    /** True iff _reader is exhausted. */
+    private boolean _eof;
+    /** Last IOException from _reader, or null. */
+    private IOException _ioException;
+    /** Text of the last token. */
+    private String _text;
+    /** True iff the last token was a command followed by '{'. */
+    private boolean _hasArgument;
+    /** True iff my input is to be treated as followed by more input. */
+    private boolean _followed;
+
+}
@@ -0,0 +1,185 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests that the Lexer breaks input into the same tokens as the
+ *  original Scanner and INPUT_PATTERN, and that the DelimiterScanner
+ *  stops at the first delimiter.
+ *  @author Jason Qiu
+ */
+public class LexerTest {
+
+    /** Returns the output (or error message) from formatting TEXT,
+     *  tokenizing with a Scanner iff SCANNER. */
+    private String format(String text, boolean scanner) {
+        StringWriter output = new StringWriter();
+        final StringBuilder errors = new StringBuilder();
+        Controller controller =
+            new Controller(new PrintWriter(output), new ErrorSink() {
+                @Override
+                public void report(String msg) {
+                    errors.append(msg).append('\n');
+                }
+            });
+        InputParser parser = new InputParser(text, controller);
+        parser.useScanner(scanner);
+        try {
+            parser.process();
+        } catch (FormatException e) {
+            errors.append(e.getMessage()).append('\n');
+        }
+        return errors + output.toString();
+    }
+
+    /** Check that TEXT formats the same with either tokenizer. */
+    private void check(String text) {
+        assertEquals("tokenizers differ on: " + text,
+                     format(text, true), format(text, false));
+    }
+
+    @Test
+    public void testTokens() {
+        check("plain words\tand  tabs\nnext line\n\n\nnew paragraph");
+        check("crlf\r\nline\r\n\r\nparagraph\r\n");
+        check("stray\rreturn");
+        check("escapes \\{ \\} \\\\ \\  \\\ttab");
+        check("\\nofill a  b \nc\n d e \n\\fill\nf");
+        check("\\textwidth{30}\\parindent{-2}\\parskip{0}\\indent{4}x y");
+        check("\\nojustify\\justify\\bogus{} z");
+        check("a\\endnote{b {c} \\} d}e");
+        check("a\\endnote{unended");
+        check("a\\endnote{unended\\");
+        check("bad \\1 escape");
+        check("bad { brace");
+        check("trailing backslash \\");
+        check("trailing blanks  \n \n\t\n");
+        check("   \n\n  leading blanks");
+        check("form\ffeed and \u00e9 accents");
+        check("");
+        check("  \n ");
+    }
+
+    @Test
+    public void testLongRuns() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i += 1) {
+            text.append("word").append(i % 7 == 0 ? "\n" : " ");
+            if (i % 500 == 0) {
+                for (int k = 0; k < 20000; k += 1) {
+                    text.append((char) ('a' + k % 26));
+                }
+                text.append("\\endnote{note ").append(i).append("}");
+            }
+        }
+        check(text.toString());
+    }
+
+    @Test
+    public void testUnfilledLines() {
+        check("\\nofill\none two\n  lead  and  trail  \n\ttabs\tx\t\n"
+              + "single\nmerges with\nthis\n\nend ");
+        check("\\nofill\\parskip{1}\\indent{2}\\parindent{-1}\nx y\n\n"
+              + "p q\r\n\r\nr s\n  \nt u\\endnote{v w}\nx \\{ y\nz \n");
+        check("\\nofill\nlast line \n");
+        check("\\nofill\nlast  line\n \t\n");
+        check("\\nofill\nstray \r return\nok ok\n\\fill\na b\nc");
+        StringBuilder text = new StringBuilder("\\nofill\\textheight{7}\n");
+        for (int i = 0; i < 5000; i += 1) {
+            text.append(i % 3 == 0 ? "    " : "").append("line ").append(i)
+                .append(i % 5 == 0 ? "\t\tend  " : "").append('\n');
+        }
+        check(text.append("x").toString());
+    }
+
+    @Test
+    public void testPlainLine() {
+        Lexer lexer = new Lexer(new StringReader("a  b\tc \nd\ne f\n"));
+        assertTrue("line not copied", lexer.plainLine());
+        assertEquals("wrong line", "a b c ", lexer.text());
+        assertEquals("trailing blank consumed", Lexer.BLANK, lexer.next());
+        assertEquals("wrong kind", Lexer.EOL, lexer.next());
+        assertFalse("single word copied", lexer.plainLine());
+        assertEquals("wrong kind", Lexer.TEXT, lexer.next());
+        assertEquals("wrong kind", Lexer.EOL, lexer.next());
+        assertFalse("last line copied", lexer.plainLine());
+        assertEquals("wrong kind", Lexer.TEXT, lexer.next());
+        lexer.reset(new StringReader("a b\\c\nd"));
+        assertFalse("command copied", lexer.plainLine());
+        assertEquals("wrong kind", Lexer.TEXT, lexer.next());
+        assertEquals("wrong text", "a", lexer.text());
+    }
+
+    @Test
+    public void testNestedArguments() {
+        Lexer lexer = new Lexer(new StringReader("\\endnote{a{b{c\\}{d}}}}e"));
+        assertEquals("wrong kind", Lexer.COMMAND, lexer.next());
+        assertEquals("wrong argument", "a{b{c\\}{d}}}", lexer.argument());
+        assertEquals("wrong kind", Lexer.TEXT, lexer.next());
+        assertEquals("wrong text", "e", lexer.text());
+    }
+
+    @Test
+    public void testLongArgument() {
+        StringBuilder text = new StringBuilder("\\endnote{");
+        for (int i = 0; i < 200000; i += 1) {
+            text.append("{x\\{");
+        }
+        for (int i = 0; i < 200000; i += 1) {
+            text.append("\\}y}");
+        }
+        String arg = text.substring("\\endnote{".length());
+        text.append("}tail");
+        Lexer lexer = new Lexer(new StringReader(text.toString()));
+        assertEquals("wrong kind", Lexer.COMMAND, lexer.next());
+        StringBuilder dest = new StringBuilder();
+        lexer.argument(dest);
+        assertEquals("wrong argument", arg, dest.toString());
+        assertEquals("wrong kind", Lexer.TEXT, lexer.next());
+        assertEquals("wrong text", "tail", lexer.text());
+        lexer.reset(new StringReader(text.substring(0, text.length() - 5)
+                                     + "\\"));
+        lexer.next();
+        try {
+            lexer.argument();
+            fail("unended argument accepted");
+        } catch (FormatException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testDelimiterScanner() {
+        Random random = new Random(27);
+        String delimiters = " \t\r\n\\{}";
+        String chars = "abc xyz\t\r\n\\{}\u0000\f\u001f!~\u00e9\uffff";
+        for (int trial = 0; trial < 2000; trial += 1) {
+            char[] buf = new char[random.nextInt(200)];
+            for (int i = 0; i < buf.length; i += 1) {
+                buf[i] = random.nextInt(8) == 0
+                    ? chars.charAt(random.nextInt(chars.length()))
+                    : (char) ('a' + random.nextInt(26));
+            }
+            int from = random.nextInt(buf.length + 1);
+            int to = from + random.nextInt(buf.length - from + 1);
+            int expected = from;
+            while (expected < to
+                   && delimiters.indexOf(buf[expected]) < 0) {
+                expected += 1;
+            }
+            assertEquals("wrong delimiter in \"" + new String(buf)
+                         + "\" from " + from + " to " + to,
+                         expected, DelimiterScanner.skipText(buf, from, to));
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package tex61;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /** An object that receives a sequence of words of text and formats
  *  the words into filled and justified text lines that are sent to a receiver.
@@ -12,11 +13,39 @@ class LineAssembler {
      *  parameters, sending finished lines to PAGES. */
     LineAssembler(PageAssembler pages) {
         _pages = pages;
+        reset();
+    }
+
+    /** Discard any partial word or line and restore the default settings
+     *  of all parameters, so that this LineAssembler may be reused for a
+     *  new document. */
+    void reset() {
+        firstLine = true;
+        newParagraph = false;
+        fillMode = true;
+        justifyMode = true;
+        indentation = Defaults.INDENTATION;
+        paragraphIndentation = Defaults.PARAGRAPH_INDENTATION;
+        textWidth = Defaults.TEXT_WIDTH;
+        paragraphSkip = Defaults.PARAGRAPH_SKIP;
+        _word = "";
+        _words.clear();
+        _paragraphEvent = null;
     }
 
     /** Add TEXT to the word currently being built. */
     void addText(String text) {
+        addText(text, 0, 0);
+    }
+
+    /** Add TEXT, which is the source text between offsets START and END,
+     *  to the word currently being built. */
+    void addText(String text, long start, long end) {
+        if (_word.equals("")) {
+            _wordStart = start;
+        }
         _word += text;
+        _wordEnd = end;
     }
 
     /** Finish the current word, if any, and add to words being accumulated. */
@@ -35,6 +64,10 @@ class LineAssembler {
             if (numBlanks < _words.size() && fillMode) {
                 outputLine(false);
             }
+            if (_words.isEmpty()) {
+                _lineStart = _wordStart;
+            }
+            _lineEnd = _wordEnd;
             addWord(_word);
             _word = "";
         }
@@ -42,6 +75,12 @@ class LineAssembler {
 
     /** Add WORD to the formatted text. */
     void addWord(String word) {
+        if (_paragraphEvent == null) {
+            _paragraphEvent = Events.paragraph();
+        }
+        if (_paragraphEvent != null && !word.equals("")) {
+            _paragraphEvent.words += 1;
+        }
         _words.add(word);
     }
 
@@ -95,51 +134,99 @@ class LineAssembler {
      *  the line accumulator. */
     void newLine() {
         if (!fillMode && !_words.isEmpty()) {
+            if (!_word.equals("")) {
+                _lineEnd = _wordEnd;
+            }
             addWord(_word);
             _word = "";
             outputLine(true);
         }
     }
 
+    /** True iff not in fill mode and there is no current word or line
+     *  being accumulated, so that addUnfilledLine may be used. */
+    boolean acceptsUnfilledLine() {
+        return !fillMode && _words.isEmpty() && _word.equals("");
+    }
+
+    /** Output LINE, the source text between offsets START and END, which
+     *  is two or more words separated by single blanks, or one or more
+     *  words followed by a blank.  The result is that of adding each of
+     *  its words and then calling newLine, but LINE is not broken into
+     *  words and joined again: it goes to my PageAssembler as it is, or
+     *  after its indentation in a single copy.  Only when
+     *  acceptsUnfilledLine(). */
+    void addUnfilledLine(String line, long start, long end) {
+        _lineStart = start;
+        _lineEnd = end;
+        addWord(line);
+        for (int i = line.indexOf(' ');
+             _paragraphEvent != null && i >= 0 && i < line.length() - 1;
+             i = line.indexOf(' ', i + 1)) {
+            _paragraphEvent.words += 1;
+        }
+        outputLine(true);
+    }
+
     /** If there is a current unfinished paragraph pending, close it
      *  out and start a new one. */
     void endParagraph() {
         outputLine(true);
+        _pages.endParagraph();
         newParagraph = true;
+        if (_paragraphEvent != null) {
+            _paragraphEvent.commit();
+            _paragraphEvent = null;
+        }
     }
 
-    /** Transfer contents of _words to _pages, adding INDENT characters of
-     *  indentation, and a total of SPACES spaces between words, evenly
-     *  distributed.  Assumes _words is not empty.  Clears _words and _chars. */
-    private void emitLine(int indent) {
-        String output = "";
+    /** Append to LINE the justified line made of WORDS, which is not
+     *  empty, indented by INDENT blanks, with blanks between its words so
+     *  that it fills WIDTH columns, as given by blanks. */
+    static void justify(List<String> words, int indent, int width,
+                        StringBuilder line) {
         for (int i = 0; i < indent; i += 1) {
-            output += " ";
+            line.append(' ');
         }
         int lineSize = 0;
-        for (String s : _words) {
+        for (String s : words) {
             lineSize += s.length();
         }
-        int B = textWidth - (indent + lineSize);
-        if  (B >= 3 * (_words.size() - 1)) {
-            for (int i = 0; i < _words.size() - 1; i += 1) {
-                _words.set(i, _words.get(i) + "   ");
-            }
-        } else {
-            int totalSpaces = 0;
-            for (int k = 1; k < _words.size(); k += 1) {
-                int condition =
-                        (int) (0.5 + (double) (B * k) / (_words.size() - 1));
-                for (; totalSpaces < condition; totalSpaces += 1) {
-                    _words.set(k - 1, _words.get(k - 1) + " ");
-                }
+        int gaps = words.size() - 1;
+        int spare = width - (indent + lineSize);
+        int totalSpaces = 0;
+        for (int k = 1; k <= gaps; k += 1) {
+            line.append(words.get(k - 1));
+            for (int n = blanks(k, gaps, spare); totalSpaces < n;
+                 totalSpaces += 1) {
+                line.append(' ');
             }
         }
-        for (String s : _words) {
-            output += s;
+        line.append(words.get(gaps));
+    }
+
+    /** Returns the number of blanks in the first K of the GAPS gaps
+     *  between the words of a justified line that has SPARE columns to
+     *  fill beyond its indentation and words: three per gap if they fit,
+     *  and otherwise SPARE distributed as evenly as possible.  Gap K
+     *  gets only the blanks, if any, that the first K - 1 lack. */
+    static int blanks(int k, int gaps, int spare) {
+        if (spare >= 3 * gaps) {
+            return 3 * k;
         }
-        _pages.addLine(output);
+        return (int) (0.5 + (double) (spare * k) / gaps);
+    }
+
+    /** Transfer contents of _words to _pages as a justified line, adding
+     *  INDENT characters of indentation.  Assumes _words is not empty.
+     *  Clears _words. */
+    private void emitLine(int indent) {
+        _pages.addJustifiedLine(_words, indent, textWidth, _lineStart,
+                                _lineEnd);
         _words.clear();
+        if (_paragraphEvent != null) {
+            _paragraphEvent.justifiedLines += 1;
+        }
     }
 
     /** If the line accumulator is non-empty, justify its current
@@ -148,72 +235,77 @@ class LineAssembler {
      *  of a paragraph. */
     private void outputLine(boolean lastLine) {
         if (!_words.isEmpty()) {
+            int indent = startLine();
             if (!fillMode || !justifyMode || lastLine) {
-                String output = "";
-                if (firstLine) {
-                    for (int i = 0; i < indentation + paragraphIndentation;
-                            i += 1) {
-                        output += " ";
-                    }
-                } else if (newParagraph) {
-                    for (int i = 0; i < indentation + paragraphIndentation;
-                            i += 1) {
-                        output += " ";
-                    }
-                    for (int i = 0; i < paragraphSkip; i += 1) {
-                        _pages.addLine(null);
-                    }
-                    newParagraph = false;
+                if (indent <= 0 && _words.size() == 1) {
+                    _pages.addLine(_words.get(0), _lineStart, _lineEnd);
                 } else {
-                    for (int i = 0; i < indentation; i += 1) {
-                        output += " ";
+                    StringBuilder output = new StringBuilder();
+                    for (int i = 0; i < indent; i += 1) {
+                        output.append(' ');
                     }
+                    output.append(_words.get(0));
+                    for (int i = 1; i < _words.size(); i += 1) {
+                        output.append(' ').append(_words.get(i));
+                    }
+                    _pages.addLine(output.toString(), _lineStart, _lineEnd);
                 }
-                for (int i = 0; i < _words.size() - 1; i += 1) {
-                    _words.set(i, _words.get(i) + " ");
-                }
-                for (String s : _words) {
-                    output += s;
-                }
-                _pages.addLine(output);
                 _words.clear();
             } else {
-                if (firstLine) {
-                    emitLine(indentation + paragraphIndentation);
-                } else if (newParagraph) {
-                    for (int i = 0; i < paragraphSkip; i += 1) {
-                        _pages.addLine(null);
-                    }
-                    emitLine(indentation + paragraphIndentation);
-                    newParagraph = false;
-                } else {
-                    emitLine(indentation);
-                }
+                emitLine(indent);
+            }
+            if (_paragraphEvent != null) {
+                _paragraphEvent.lines += 1;
             }
         }
         firstLine = false;
     }
 
+    /** Returns the indentation of the line about to be output, after
+     *  adding the paragraph skip before it if it starts a paragraph other
+     *  than the first. */
+    private int startLine() {
+        if (firstLine) {
+            return indentation + paragraphIndentation;
+        } else if (newParagraph) {
+            for (int i = 0; i < paragraphSkip; i += 1) {
+                _pages.addLine(null);
+            }
+            newParagraph = false;
+            return indentation + paragraphIndentation;
+        } else {
+            return indentation;
+        }
+    }
+
     /** Destination given in constructor for formatted lines. */
     private PageAssembler _pages;
     /** Whether the next line is the first line. */
-    private boolean firstLine = true;
+    private boolean firstLine;
     /** Whether the next line is a new paragraph. */
-    private boolean newParagraph = false;
+    private boolean newParagraph;
     /** To fill or not to fill. */
-    private boolean fillMode = true;
+    private boolean fillMode;
     /** To justify or not to justify. */
-    private boolean justifyMode = true;
+    private boolean justifyMode;
     /** indentation setting. */
-    private int indentation = Defaults.INDENTATION;
+    private int indentation;
     /** paragraph indentation setting. */
-    private int paragraphIndentation = Defaults.PARAGRAPH_INDENTATION;
+    private int paragraphIndentation;
     /** Text width setting. */
-    private int textWidth = Defaults.TEXT_WIDTH;
+    private int textWidth;
     /** paragraph skip setting. */
-    private int paragraphSkip = Defaults.PARAGRAPH_SKIP;
+    private int paragraphSkip;
     /** Current word. */
-    private String _word = "";
+    private String _word;
+    /** Source offsets of the start and end of the current word. */
+    private long _wordStart, _wordEnd;
+    /** Source offsets of the start and end of the words being
+     *  accumulated. */
+    private long _lineStart, _lineEnd;
+    /** Records the assembly of the current paragraph, or null if it has
+     *  no words yet. */
+    private Events.Paragraph _paragraphEvent;
     /** List of words being accumulated. */
     private ArrayList<String> _words = new ArrayList<String>();
 }
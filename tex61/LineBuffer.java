@@ -0,0 +1,190 @@
+package tex61;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/** A PageAssembler that saves its lines, unpaginated, along with any
+ *  changes of text height and ends of paragraphs among them, so that they
+ *  may later be replayed into another PageAssembler, possibly in another
+ *  process.
+ *  @author Jason Qiu
+ */
+class LineBuffer extends PageAssembler {
+
+    /** A new, empty LineBuffer. */
+    LineBuffer() {
+        super(null);
+    }
+
+    /** Save LINE, which is null for a skipped line. */
+    @Override
+    void write(String line) {
+        addLine(line, 0, 0);
+    }
+
+    /** Save LINE, formatted from the source text between START and
+     *  END. */
+    @Override
+    void addLine(String line, long start, long end) {
+        int k = _lines.size();
+        if (k == _starts.length) {
+            _starts = Arrays.copyOf(_starts, 2 * k);
+            _ends = Arrays.copyOf(_ends, 2 * k);
+        }
+        _starts[k] = start;
+        _ends[k] = end;
+        _lines.add(line);
+    }
+
+    /** Save a change of text height to VAL. */
+    @Override
+    void setTextHeight(int val) {
+        _heightChanges.add(new int[] { _lines.size(), val });
+    }
+
+    /** Save the end of a paragraph. */
+    @Override
+    void endParagraph() {
+        int n = _paragraphEnds.size();
+        if (n == 0 || _paragraphEnds.get(n - 1) != _lines.size()) {
+            _paragraphEnds.add(_lines.size());
+        }
+    }
+
+    /** Discard all saved lines. */
+    @Override
+    void reset() {
+        _lines.clear();
+        _heightChanges.clear();
+        _paragraphEnds.clear();
+    }
+
+    /** Add all saved lines, text height changes, and ends of paragraphs,
+     *  in order, to PAGES, and discard them. */
+    void replay(PageAssembler pages) {
+        play(pages);
+        reset();
+    }
+
+    /** Add all saved lines, text height changes, and ends of paragraphs,
+     *  in order, to PAGES, keeping them so that they may be added
+     *  again. */
+    void play(PageAssembler pages) {
+        play(pages, 0, _lines.size());
+        playEnd(pages);
+    }
+
+    /** Add saved lines FROM to TO - 1 to PAGES, each after the text
+     *  height changes and ends of paragraphs saved just before it,
+     *  keeping them.  Playing successive ranges of lines and then calling
+     *  playEnd is the same as play. */
+    void play(PageAssembler pages, int from, int to) {
+        int h = 0;
+        while (h < _heightChanges.size() && _heightChanges.get(h)[0] < from) {
+            h += 1;
+        }
+        int p = Collections.binarySearch(_paragraphEnds, from);
+        if (p < 0) {
+            p = -p - 1;
+        }
+        for (int i = from; i < to; i += 1) {
+            for (; h < _heightChanges.size()
+                     && _heightChanges.get(h)[0] == i; h += 1) {
+                pages.setTextHeight(_heightChanges.get(h)[1]);
+            }
+            for (; p < _paragraphEnds.size()
+                     && _paragraphEnds.get(p) == i; p += 1) {
+                pages.endParagraph();
+            }
+            if (_lines.get(i) == null) {
+                pages.addLine(null);
+            } else {
+                pages.addLine(_lines.get(i), _starts[i], _ends[i]);
+            }
+        }
+    }
+
+    /** Add the text height changes and end of paragraph saved after the
+     *  last saved line to PAGES. */
+    void playEnd(PageAssembler pages) {
+        int n = _lines.size();
+        for (int[] change : _heightChanges) {
+            if (change[0] == n) {
+                pages.setTextHeight(change[1]);
+            }
+        }
+        int p = _paragraphEnds.size();
+        if (p > 0 && _paragraphEnds.get(p - 1) == n) {
+            pages.endParagraph();
+        }
+    }
+
+    /** Returns the number of saved lines. */
+    int size() {
+        return _lines.size();
+    }
+
+    /** Write my contents to OUT, to be restored by read. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(_lines.size());
+        for (int i = 0; i < _lines.size(); i += 1) {
+            String line = _lines.get(i);
+            out.writeBoolean(line != null);
+            if (line != null) {
+                Shard.writeString(out, line);
+                out.writeLong(_starts[i]);
+                out.writeLong(_ends[i]);
+            }
+        }
+        out.writeInt(_heightChanges.size());
+        for (int[] change : _heightChanges) {
+            out.writeInt(change[0]);
+            out.writeInt(change[1]);
+        }
+        out.writeInt(_paragraphEnds.size());
+        for (int i : _paragraphEnds) {
+            out.writeInt(i);
+        }
+    }
+
+    /** Replace my contents with those written to IN by write. */
+    void read(DataInputStream in) throws IOException {
+        reset();
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            if (in.readBoolean()) {
+                String line = Shard.readString(in);
+                long start = in.readLong();
+                addLine(line, start, in.readLong());
+            } else {
+                addLine(null, 0, 0);
+            }
+        }
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            _heightChanges.add(new int[] { in.readInt(), in.readInt() });
+        }
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            _paragraphEnds.add(in.readInt());
+        }
+    }
+
+    /** Initial capacity of _starts and _ends. */
+    private static final int INITIAL_SIZE = 64;
+
+    /** Saved lines. */
+    private final ArrayList<String> _lines = new ArrayList<String>();
+    /** Source offsets of the start of each of _lines. */
+    private long[] _starts = new long[INITIAL_SIZE];
+    /** Source offsets of the end of each of _lines. */
+    private long[] _ends = new long[INITIAL_SIZE];
+    /** Saved text height changes, as pairs { I, H }: the height became H
+     *  just before _lines[I]. */
+    private final ArrayList<int[]> _heightChanges = new ArrayList<int[]>();
+    /** Saved ends of paragraphs: a paragraph ended just before each
+     *  _lines[I], or after the last line if I is the number of lines. */
+    private final ArrayList<Integer> _paragraphEnds = new ArrayList<Integer>();
+
+}
@@ -1,10 +1,18 @@
 package tex61;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.EOFException;
 import java.io.Reader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 import static tex61.FormatException.reportError;
 import static tex61.FormatException.getTotalErrors;
@@ -16,9 +24,56 @@ public class Main {
 
     /** Format the file ARGS[0], producing output on the standard
      *  output if ARGS.length is 1, and otherwise on ARGS[1].  ARGS must
-     *  have length 1 or 2.  Print a usage message otherwise or if the
-     *  files are unreadable or unwritable, respectively. */
+     *  have length 1 or 2, optionally preceded by "-j N", which divides
+     *  the formatting among N worker processes, "-m MAPFILE", which
+     *  saves a SourceMap of the output in MAPFILE, "-w", which turns on
+     *  widow control, and "-f RECORDS", which formats ARGS[0] as a
+     *  Template once for each record in the file RECORDS (CSV, or JSON
+     *  lines if its name ends in .jsonl), using N threads with -j N.
+     *  An error that stops the formatting leaves no output, except with
+     *  -j N, which prints each page as soon as it is complete.  Print a
+     *  usage message otherwise or if the files are unreadable or
+     *  unwritable, respectively.  The single argument "--worker" makes
+     *  this a worker process, formatting Shards sent on the standard
+     *  input. */
     public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("--worker")) {
+            work();
+            return;
+        }
+
+        int workers = 0;
+        String mapFile = null;
+        String recordsFile = null;
+        boolean widowControl = false;
+        while (args.length >= 2 && args[0].startsWith("-")) {
+            if (args[0].equals("-w")) {
+                widowControl = true;
+                args = Arrays.copyOfRange(args, 1, args.length);
+                continue;
+            } else if (args[0].equals("-j")) {
+                try {
+                    workers = Integer.parseInt(args[1]);
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers <= 0) {
+                    reportError("bad number of workers: %s", args[1]);
+                    usage();
+                    System.exit(1);
+                }
+            } else if (args[0].equals("-m")) {
+                mapFile = args[1];
+            } else if (args[0].equals("-f")) {
+                recordsFile = args[1];
+            } else {
+                reportError("unknown option: %s", args[0]);
+                usage();
+                System.exit(1);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
         if (args.length == 0) {
             usage();
             return;
@@ -30,6 +85,12 @@ public class Main {
             System.exit(1);
         }
 
+        if (recordsFile != null && mapFile != null) {
+            reportError("cannot map the output of a merge");
+            usage();
+            System.exit(1);
+        }
+
         try {
             Reader input;
             input = new FileReader(new File(args[0]));
@@ -42,11 +103,32 @@ public class Main {
                 output = new PrintWriter(System.out);
             }
 
-            Controller cntrl = new Controller(output);
-            InputParser src = new InputParser(input, cntrl);
-            src.process();
+            SourceMap map = mapFile == null ? null : new SourceMap();
+            if (recordsFile != null) {
+                Records records = new Records(new FileReader(recordsFile),
+                                              Records.isJson(recordsFile));
+                merge(input, records, output, widowControl,
+                      workers > 0 ? workers
+                      : Runtime.getRuntime().availableProcessors());
+            } else if (workers > 0) {
+                ShardCoordinator coordinator = new ShardCoordinator(workers);
+                coordinator.setSourceMap(map);
+                coordinator.setWidowControl(widowControl);
+                coordinator.format(input, output, STANDARD_ERROR);
+            } else {
+                Formatter formatter = new Formatter();
+                formatter.setSourceMap(map);
+                formatter.setWidowControl(widowControl);
+                formatter.format(input, output, STANDARD_ERROR);
+            }
             output.close();
-        } catch (FormatException | IOException e) {
+            if (map != null) {
+                try (OutputStream out = new BufferedOutputStream(
+                         new FileOutputStream(mapFile))) {
+                    map.write(out);
+                }
+            }
+        } catch (IOException e) {
             reportError(e.getMessage());
             System.exit(1);
             return;
@@ -55,11 +137,76 @@ public class Main {
         System.exit(getTotalErrors() == 0 ? 0 : 1);
     }
 
+    /** Format the Template read from INPUT once for each of RECORDS,
+     *  writing the results to OUTPUT, with widow control iff
+     *  WIDOWCONTROL, using THREADS threads. */
+    private static void merge(Reader input, Records records,
+                              PrintWriter output, boolean widowControl,
+                              int threads) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buf = new char[BUFFER_SIZE];
+        for (int n = input.read(buf); n >= 0; n = input.read(buf)) {
+            text.append(buf, 0, n);
+        }
+        Template template;
+        try {
+            template = new Template(text.toString());
+        } catch (FormatException e) {
+            reportError("%s", e.getMessage());
+            return;
+        }
+        template.setWidowControl(widowControl);
+        template.mergeAll(records, output, STANDARD_ERROR, threads);
+    }
+
+    /** Serve as a worker process for a ShardCoordinator. */
+    private static void work() {
+        try {
+            Shard.serve(new DataInputStream(
+                            new BufferedInputStream(System.in)),
+                        new DataOutputStream(
+                            new BufferedOutputStream(System.out)));
+        } catch (EOFException e) {
+            System.exit(0);
+        } catch (IOException e) {
+            reportError(e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /** Size of the buffer used to read a Template. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Reports each error on the standard error, counting it toward
+     *  getTotalErrors. */
+    private static final ErrorSink STANDARD_ERROR = new ErrorSink() {
+        @Override
+        public void report(String msg) {
+            reportError("%s", msg);
+        }
+    };
+
     /** Print usage message. */
     private static void usage() {
-        System.out.printf("Usage: java format.Main INFILE [OUTFILE]%n"
+        System.out.printf("Usage: java format.Main [-w] [-j N] [-m MAPFILE] "
+                          + "[-f RECORDS] INFILE [OUTFILE]%n"
                           + "   Format INFILE, sending output to OUTFILE "
-                          + "(default: standard output).%n");
+                          + "(default: standard output).%n"
+                          + "   -j N: divide the work among N worker "
+                          + "processes.%n"
+                          + "   -m MAPFILE: save a map from source "
+                          + "positions to output lines in MAPFILE.%n"
+                          + "   -w: move lines to the next page rather "
+                          + "than leave one line of a%n"
+                          + "       paragraph alone at the top or bottom "
+                          + "of a page.%n"
+                          + "   -f RECORDS: format INFILE once for each "
+                          + "record in RECORDS (CSV, or%n"
+                          + "       JSON lines if named *.jsonl), replacing "
+                          + "each \\field{NAME} with%n"
+                          + "       the record's NAME; -j N uses N threads."
+                          + "%n");
     }
 
 }
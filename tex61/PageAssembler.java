@@ -1,5 +1,7 @@
 package tex61;
 
+import java.util.List;
+
 /** A PageAssembler accepts complete lines of text (minus any
  *  terminating newlines) and turns them into pages, adding form
  *  feeds as needed.  It prepends a form feed (Control-L  or ASCII 12)
@@ -23,10 +25,37 @@ abstract class PageAssembler {
         write(line);
     }
 
+    /** Add LINE, as for addLine(LINE), where LINE was formatted from the
+     *  source text between offsets START and END. */
+    void addLine(String line, long start, long end) {
+        addLine(line);
+    }
+
+    /** Add the justified line made of WORDS, as for addLine(LINE,
+     *  START, END), where LINE is WORDS indented by INDENT blanks and
+     *  spread across WIDTH columns by LineAssembler.justify.  WORDS may
+     *  change once this returns. */
+    void addJustifiedLine(List<String> words, int indent, int width,
+                          long start, long end) {
+        StringBuilder line = new StringBuilder(width);
+        LineAssembler.justify(words, indent, width, line);
+        addLine(line.toString(), start, end);
+    }
+
+    /** Indicate that the current paragraph, if any, has ended, so that
+     *  lines added hereafter belong to another. */
+    void endParagraph() {
+    }
+
     /** Set text height to VAL, where VAL > 0. */
     void setTextHeight(int val) {
     }
 
+    /** Return to the initial state, so that this PageAssembler may be
+     *  reused for a new document. */
+    void reset() {
+    }
+
     /** Perform final disposition of LINE, as determined by the
      *  concrete subtype. */
     abstract void write(String line);
@@ -2,6 +2,7 @@ package tex61;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 
@@ -65,6 +66,60 @@ public class PageAssemblerTest {
         assertEquals("wrong contents: collector", testLines, outList);
     }
 
+    @Test
+    public void testWidowControl() {
+        setupCollector();
+        PageCollector collector = new PageCollector(outList);
+        collector.setWidowControl(true);
+        collector.setTextHeight(5);
+        pages = collector;
+        addParagraph("a", 3);
+        addParagraph("b", 3);
+        assertEquals("widow not avoided",
+                     Arrays.asList("a1", "a2", "a3", "", "", "\fb1", "b2",
+                                   "b3"), outList);
+        collector.reset();
+        collector.setTextHeight(5);
+        addParagraph("a", 4);
+        addParagraph("b", 4);
+        assertEquals("orphan not avoided",
+                     Arrays.asList("a1", "a2", "a3", "a4", "", "\fb1", "b2",
+                                   "b3", "b4"), outList);
+        collector.reset();
+        collector.setTextHeight(5);
+        addParagraph("a", 5);
+        addParagraph("b", 1);
+        addParagraph("c", 6);
+        assertEquals("good breaks changed",
+                     Arrays.asList("a1", "a2", "a3", "a4", "a5", "\fb1",
+                                   "c1", "c2", "c3", "c4", "\fc5", "c6"),
+                     outList.subList(0, 12));
+    }
+
+    @Test
+    public void testReplayedParagraphs() {
+        LineBuffer buffer = new LineBuffer();
+        pages = buffer;
+        addParagraph("a", 3);
+        addParagraph("b", 3);
+        setupCollector();
+        PageCollector collector = new PageCollector(outList);
+        collector.setWidowControl(true);
+        collector.setTextHeight(5);
+        buffer.replay(collector);
+        assertEquals("paragraphs not replayed",
+                     Arrays.asList("a1", "a2", "a3", "", "", "\fb1", "b2",
+                                   "b3"), outList);
+    }
+
+    /** Add a paragraph of N lines, NAME1 to NAMEN, to pages. */
+    private void addParagraph(String name, int n) {
+        for (int i = 1; i <= n; i += 1) {
+            pages.addLine(name + i);
+        }
+        pages.endParagraph();
+    }
+
     /** Collects output to a PrintWriter. */
     private StringWriter output;
     /** Collects output from a PageAssembler. */
@@ -1,8 +1,21 @@
 package tex61;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /** A PageAssembler that collects its lines into a designated List.
+ *  Lines may be removed from the List once added (for example, once
+ *  printed) without affecting the pagination of those that follow.
+ *  When the List is a Layout, justified lines are deferred in it,
+ *  unrendered, and the lines that start pages are marked in it rather
+ *  than prefixed with form feeds.
+ *  With widow control, it keeps a paragraph from leaving a single line
+ *  at the bottom of a page (an orphan) or at the top of one (a widow),
+ *  by padding the bottom of the page with blank lines so that lines move
+ *  to the next page.  To decide, it holds back the lines of the current
+ *  paragraph at the bottom two rows of a page and the top row of the
+ *  next, until the paragraph ends or has a second line on the next page,
+ *  so that it never holds more than three lines.
  *  @author Jason Qiu
  */
 class PageCollector extends PageAssembler {
@@ -11,31 +24,199 @@ class PageCollector extends PageAssembler {
     PageCollector(List<String> out) {
         super(out);
         _out = out;
+        _layout = out instanceof Layout ? (Layout) out : null;
+    }
+
+    /** Add LINE, as for addLine(LINE, 0, 0). */
+    @Override
+    void addLine(String line) {
+        addLine(line, 0, 0);
+    }
+
+    /** Add LINE, formatted from the source text between START and END, to
+     *  my List, recording its position in my SourceMap, if any.  With
+     *  widow control, LINE may be held back until the end of its
+     *  paragraph. */
+    @Override
+    void addLine(String line, long start, long end) {
+        if (line == null || !_widowControl
+            || textHeight < MIN_CONTROLLED_HEIGHT) {
+            release(0);
+            place(line, start, end);
+            return;
+        }
+        int row = (_count + _held.size()) % textHeight;
+        if (row == 1 && _heldBefore < _held.size()) {
+            release(_linesBefore == 1 ? 1 : 0);
+            row = (_count + _held.size()) % textHeight;
+        }
+        _paragraphLines += 1;
+        if (row >= textHeight - 2) {
+            hold(line, start, end);
+            _heldBefore = _held.size();
+        } else if (row == 0 && !_held.isEmpty()) {
+            _linesBefore = _paragraphLines - 1;
+            hold(line, start, end);
+        } else {
+            place(line, start, end);
+        }
+    }
+
+    /** Add the justified line made of WORDS, indented by INDENT and
+     *  filling WIDTH columns, as for the PageAssembler, but deferring its
+     *  rendering if my List is a Layout. */
+    @Override
+    void addJustifiedLine(List<String> words, int indent, int width,
+                          long start, long end) {
+        if (_layout == null) {
+            super.addJustifiedLine(words, indent, width, start, end);
+        } else {
+            _layout.defer(words, indent, width);
+            addLine(Layout.JUSTIFIED, start, end);
+        }
     }
 
     /** Add LINE to my List. */
     @Override
     void write(String line) {
         if (line != null) {
-            if (!firstLine && _out.size() % textHeight == 0) {
-                line = "\f" + line;
+            boolean newPage = !firstLine && _count % textHeight == 0;
+            if (newPage) {
+                _page += 1;
+                _pageStart = _count;
             }
-            _out.add(line);
+            if (_layout != null) {
+                _layout.add(line, newPage);
+            } else {
+                _out.add(newPage ? "\f" + line : line);
+            }
+            _count += 1;
             firstLine = false;
-        } else if (_out.size() % textHeight != 0) {
+        } else if (_count % textHeight != 0) {
             _out.add("");
+            _count += 1;
         }
     }
 
-    /** Set text height to VAL, where VAL > 0. */
+    /** End the current paragraph, adding any lines held back, moved to
+     *  the next page if the last of them would otherwise be a widow. */
+    @Override
+    void endParagraph() {
+        if (_heldBefore < _held.size()) {
+            release(_linesBefore >= 3 ? 1 : _linesBefore);
+        } else {
+            release(0);
+        }
+        _paragraphLines = 0;
+    }
+
+    /** Iff ON, keep paragraphs from leaving single lines at the tops and
+     *  bottoms of pages. */
+    void setWidowControl(boolean on) {
+        endParagraph();
+        _widowControl = on;
+    }
+
+    /** Record the positions of my lines hereafter in MAP, or (if MAP is
+     *  null) nowhere. */
+    void setSourceMap(SourceMap map) {
+        _sourceMap = map;
+    }
+
+    /** Set text height to VAL, where VAL > 0.  Lines held back are first
+     *  added at the old height, and widow control starts afresh with the
+     *  following lines. */
+    @Override
     void setTextHeight(int val) {
+        endParagraph();
         textHeight = val;
     }
 
+    /** Discard all collected lines and restore the default text
+     *  height. */
+    @Override
+    void reset() {
+        _out.clear();
+        _held.clear();
+        _heldBefore = _paragraphLines = _linesBefore = 0;
+        firstLine = true;
+        _page = 1;
+        _pageStart = _count = 0;
+        if (_sourceMap != null) {
+            _sourceMap.clear();
+        }
+        textHeight = Defaults.TEXT_HEIGHT;
+    }
+
+    /** Add LINE, formatted from the source text between START and END, to
+     *  my List, recording its position in my SourceMap, if any. */
+    private void place(String line, long start, long end) {
+        write(line);
+        if (_sourceMap != null && line != null) {
+            _sourceMap.add(_page, _count - _pageStart, start, end);
+        }
+    }
+
+    /** Hold back LINE, formatted from the source text between START and
+     *  END. */
+    private void hold(String line, long start, long end) {
+        int k = _held.size();
+        _held.add(line);
+        _heldStarts[k] = start;
+        _heldEnds[k] = end;
+    }
+
+    /** Add all held lines to my List, first padding the page before them
+     *  with blank lines so that the last MOVE of those held at the bottom
+     *  of a page start the next one. */
+    private void release(int move) {
+        for (int k = 0; k < _held.size(); k += 1) {
+            if (k == _heldBefore - move) {
+                for (int i = 0; i < move; i += 1) {
+                    write("");
+                }
+            }
+            place(_held.get(k), _heldStarts[k], _heldEnds[k]);
+        }
+        _held.clear();
+        _heldBefore = 0;
+    }
+
+    /** Smallest text height at which widow control applies. */
+    private static final int MIN_CONTROLLED_HEIGHT = 3;
+    /** Largest number of lines held back. */
+    private static final int MAX_HELD = 3;
+
     /** List to send output to. */
     private List<String> _out;
+    /** _out, if it is a Layout, or null. */
+    private final Layout _layout;
     /** Whether the next line is the first of the document. */
     private boolean firstLine = true;
     /** Text height setting. */
     private int textHeight = Defaults.TEXT_HEIGHT;
+    /** Number of the current page. */
+    private int _page = 1;
+    /** Number of lines added to _out since I was created or reset,
+     *  including any since removed from it. */
+    private int _count;
+    /** Index among those lines of the first line of the current page. */
+    private int _pageStart;
+    /** Where to record the positions of lines, or null. */
+    private SourceMap _sourceMap;
+    /** True iff widow control is on. */
+    private boolean _widowControl;
+    /** Lines of the current paragraph held back. */
+    private final ArrayList<String> _held = new ArrayList<String>(MAX_HELD);
+    /** Source offsets of the starts and ends of _held. */
+    private final long[] _heldStarts = new long[MAX_HELD],
+        _heldEnds = new long[MAX_HELD];
+    /** Number of _held at the bottom of a page, before any at the top of
+     *  the next page. */
+    private int _heldBefore;
+    /** Number of lines of the current paragraph added so far. */
+    private int _paragraphLines;
+    /** Number of lines of the current paragraph before the page break at
+     *  which lines are held, when one of them is at the top of a page. */
+    private int _linesBefore;
 }
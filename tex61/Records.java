@@ -0,0 +1,275 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A source of records for a mail merge, each a map from field names to
+ *  values, read one at a time from a file of comma-separated values or of
+ *  JSON lines.  A CSV file has a header line naming the fields, followed
+ *  by one line per record, as in RFC 4180: fields containing commas,
+ *  quotes, or line breaks are enclosed in double quotes, with quotes
+ *  doubled.  A JSON-lines file has one object per line, whose members
+ *  have strings, numbers, booleans, or null (taken as "") as values.
+ *  Blank lines are ignored in both, except after the header of a CSV
+ *  file of one field, where a blank line is a record whose one field is
+ *  empty.
+ *  @author Jason Qiu
+ */
+class Records {
+
+    /** Records read from INPUT, which is in JSON-lines form iff JSON and
+     *  otherwise in CSV form. */
+    Records(Reader input, boolean json) {
+        _input = input;
+        _json = json;
+    }
+
+    /** Returns true iff a file named NAME holds JSON lines, judging by its
+     *  extension. */
+    static boolean isJson(String name) {
+        return name.endsWith(".jsonl") || name.endsWith(".ndjson")
+            || name.endsWith(".json");
+    }
+
+    /** Returns the next record, or null if there are no more.  Throws an
+     *  IOException giving the line number if the input is malformed. */
+    Map<String, String> next() throws IOException {
+        if (_json) {
+            return nextObject();
+        }
+        if (_names == null) {
+            _names = nextRow();
+            if (_names == null) {
+                return null;
+            }
+        }
+        List<String> row = nextRow();
+        if (row == null) {
+            return null;
+        }
+        if (row.size() != _names.size()) {
+            throw error(_rowLine, "expected %d fields, found %d",
+                        _names.size(), row.size());
+        }
+        Map<String, String> record = new HashMap<String, String>();
+        for (int i = 0; i < row.size(); i += 1) {
+            record.put(_names.get(i), row.get(i));
+        }
+        return record;
+    }
+
+    /** Returns the fields of the next CSV row, or null at the end of
+     *  input.  Blank lines are skipped, except in a file of one field,
+     *  where each is a row of one empty field. */
+    private List<String> nextRow() throws IOException {
+        int c = read();
+        if (_afterReturn && c == '\n') {
+            c = read();
+        }
+        _afterReturn = false;
+        if (_names == null || _names.size() > 1) {
+            while (c == '\r' || c == '\n') {
+                c = read();
+            }
+        }
+        if (c < 0) {
+            return null;
+        }
+        int line = _rowLine = _line;
+        List<String> row = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        while (true) {
+            if (c == '"' && field.length() == 0) {
+                for (c = read(); c != '"' || (c = read()) == '"';
+                     c = read()) {
+                    if (c < 0) {
+                        throw error(line, "unclosed quote");
+                    }
+                    field.append((char) c);
+                }
+            }
+            if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+                c = read();
+            } else if (c < 0 || c == '\n' || c == '\r') {
+                _afterReturn = c == '\r';
+                row.add(field.toString());
+                return row;
+            } else {
+                field.append((char) c);
+                c = read();
+            }
+        }
+    }
+
+    /** Returns the member values of the next non-blank line of JSON, or
+     *  null at the end of input. */
+    private Map<String, String> nextObject() throws IOException {
+        int c = skipWhitespace(read());
+        if (c < 0) {
+            return null;
+        }
+        int line = _line;
+        if (c != '{') {
+            throw error(line, "expected an object");
+        }
+        Map<String, String> record = new HashMap<String, String>();
+        c = skipWhitespace(read());
+        if (c == '}') {
+            return record;
+        }
+        while (true) {
+            if (c != '"') {
+                throw error(line, "expected a member name");
+            }
+            String name = string(line);
+            if (skipWhitespace(read()) != ':') {
+                throw error(line, "expected ':'");
+            }
+            c = skipWhitespace(read());
+            if (c == '"') {
+                record.put(name, string(line));
+                c = skipWhitespace(read());
+            } else {
+                StringBuilder literal = new StringBuilder();
+                while (c >= 0 && c != ',' && c != '}'
+                       && !Character.isWhitespace(c)) {
+                    literal.append((char) c);
+                    c = read();
+                }
+                record.put(name, literal(line, literal.toString()));
+                c = skipWhitespace(c);
+            }
+            if (c == '}') {
+                return record;
+            } else if (c != ',') {
+                throw error(line, "expected ',' or '}'");
+            }
+            c = skipWhitespace(read());
+        }
+    }
+
+    /** Returns the value of the JSON string whose opening quote has just
+     *  been read, on line LINE. */
+    private String string(int line) throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (int c = read(); c != '"'; c = read()) {
+            if (c < 0 || c == '\n') {
+                throw error(line, "unclosed string");
+            } else if (c != '\\') {
+                result.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+            case '"': case '\\': case '/':
+                result.append((char) c);
+                break;
+            case 'b':
+                result.append('\b');
+                break;
+            case 'f':
+                result.append('\f');
+                break;
+            case 'n':
+                result.append('\n');
+                break;
+            case 'r':
+                result.append('\r');
+                break;
+            case 't':
+                result.append('\t');
+                break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i += 1) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw error(line, "bad \\u escape");
+                    }
+                    code = 16 * code + digit;
+                }
+                result.append((char) code);
+                break;
+            default:
+                throw error(line, "bad escape");
+            }
+        }
+        return result.toString();
+    }
+
+    /** Returns the value of the JSON number, boolean, or null LITERAL on
+     *  line LINE. */
+    private String literal(int line, String literal) throws IOException {
+        if (literal.equals("null")) {
+            return "";
+        } else if (literal.equals("true") || literal.equals("false")
+                   || literal.matches("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?")) {
+            return literal;
+        }
+        throw error(line, "expected a string, number, boolean, or null");
+    }
+
+    /** Returns the first character from C on that is not whitespace. */
+    private int skipWhitespace(int c) throws IOException {
+        while (c >= 0 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    /** Returns the next character of input, or -1 at its end. */
+    private int read() throws IOException {
+        if (_pos == _limit) {
+            _limit = _input.read(_buf);
+            _pos = 0;
+            if (_limit <= 0) {
+                _limit = 0;
+                return -1;
+            }
+        }
+        char c = _buf[_pos];
+        _pos += 1;
+        if (c == '\n') {
+            _line += 1;
+        }
+        return c;
+    }
+
+    /** Returns the exception for malformed input on line LINE, described
+     *  by FORMAT and ARGS, whose meaning is as for printf. */
+    private static IOException error(int line, String format,
+                                     Object... args) {
+        return new IOException(String.format("line %d: ", line)
+                               + String.format(format, args));
+    }
+
+    /** Size of _buf. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** My input. */
+    private final Reader _input;
+    /** True iff my input is JSON lines. */
+    private final boolean _json;
+    /** Names of the fields of a CSV file, or null if not yet read. */
+    private List<String> _names;
+    /** Buffered input.  _buf[_pos .. _limit-1] is unread. */
+    private final char[] _buf = new char[BUFFER_SIZE];
+    /** Index in _buf of the next unread character. */
+    private int _pos;
+    /** Index in _buf just past the last character read. */
+    private int _limit;
+    /** True iff the last CSV row ended with a carriage return, so that
+     *  a newline just after it ends the same line. */
+    private boolean _afterReturn;
+    /** Number of the line on which the last CSV row started. */
+    private int _rowLine;
+    /** Number of the line of the next unread character. */
+    private int _line = 1;
+
+}
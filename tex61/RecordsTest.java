@@ -0,0 +1,123 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/** Tests of reading mail-merge Records.
+ *  @author Jason Qiu
+ */
+public class RecordsTest {
+
+    @Test
+    public void testCsv() throws IOException {
+        List<Map<String, String>> records =
+            read("name,note\r\nAnn,\"a, \"\"quoted\"\"\r\nvalue\"\r\n\r\n"
+                 + "Bob,\n\"\",plain\n", false);
+        assertEquals("wrong number of records", 3, records.size());
+        assertEquals("wrong first record",
+                     record("name", "Ann", "note",
+                            "a, \"quoted\"\r\nvalue"),
+                     records.get(0));
+        assertEquals("wrong second record", record("name", "Bob", "note", ""),
+                     records.get(1));
+        assertEquals("wrong third record", record("name", "", "note", "plain"),
+                     records.get(2));
+        assertEquals("no records expected", 0, read("a,b\n", false).size());
+        assertEquals("no records expected", 0, read("", false).size());
+    }
+
+    @Test
+    public void testOneField() throws IOException {
+        List<Map<String, String>> records =
+            read("\nname\r\nAnn\r\n\r\n\nBob\n", false);
+        assertEquals("wrong number of records", 4, records.size());
+        assertEquals("wrong first record", record("name", "Ann"),
+                     records.get(0));
+        assertEquals("wrong second record", record("name", ""),
+                     records.get(1));
+        assertEquals("wrong third record", record("name", ""),
+                     records.get(2));
+        assertEquals("wrong fourth record", record("name", "Bob"),
+                     records.get(3));
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        List<Map<String, String>> records =
+            read("{\"name\": \"A\\\"n\\\\n\\u00e9\\n\", \"n\": -1.5e3}\n"
+                 + "\n{ \"ok\":true , \"none\" : null }\n{}\n", true);
+        assertEquals("wrong number of records", 3, records.size());
+        assertEquals("wrong first record",
+                     record("name", "A\"n\\n\u00e9\n", "n", "-1.5e3"),
+                     records.get(0));
+        assertEquals("wrong second record", record("ok", "true", "none", ""),
+                     records.get(1));
+        assertEquals("wrong third record", record(), records.get(2));
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        checkError("a,b\n1,2\n\n1\n", false, "line 4: expected 2 fields");
+        checkError("a\n\"open\n\n", false, "line 2: unclosed quote");
+        checkError("{\"a\": 1}\n[1]\n", true, "line 2: expected an object");
+        checkError("{\"a\": \"x}\n", true, "line 1: unclosed string");
+        checkError("{\"a\": yes}\n", true, "line 1: expected a string");
+        checkError("{\"a\": {}}\n", true, "line 1: expected a string");
+        checkError("{\"a\" 1}\n", true, "line 1: expected ':'");
+        checkError("{\"a\": \"\\q\"}\n", true, "line 1: bad escape");
+    }
+
+    @Test
+    public void testIsJson() {
+        assertTrue("JSON lines not recognized", Records.isJson("x.jsonl"));
+        assertTrue("JSON lines not recognized", Records.isJson("x.ndjson"));
+        assertTrue("CSV taken for JSON", !Records.isJson("x.csv"));
+    }
+
+    /** Check that reading TEXT, as JSON lines iff JSON, fails with a
+     *  message starting with MSG. */
+    private void checkError(String text, boolean json, String msg) {
+        try {
+            read(text, json);
+            fail("no error reading " + text);
+        } catch (IOException e) {
+            assertTrue("wrong message: " + e.getMessage(),
+                       e.getMessage().startsWith(msg));
+        }
+    }
+
+    /** Returns the records in TEXT, which is JSON lines iff JSON. */
+    private List<Map<String, String>> read(String text, boolean json)
+        throws IOException {
+        Records records = new Records(new StringReader(text), json);
+        List<Map<String, String>> result = new ArrayList<>();
+        for (Map<String, String> r = records.next(); r != null;
+             r = records.next()) {
+            result.add(r);
+        }
+        assertNull("records after the end", records.next());
+        return result;
+    }
+
+    /** Returns the record whose field names and values alternate in
+     *  FIELDS. */
+    private Map<String, String> record(String... fields) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < fields.length; i += 2) {
+            result.put(fields[i], fields[i + 1]);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,364 @@
+package tex61;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** The reference engine against which Fuzz checks the formatter: the
+ *  original text formatter, kept apart from the code it checks, so that
+ *  no change to the formatter can change the reference too.  It matches
+ *  each token with the original regular expression, and each argument
+ *  with the original BALANCED_TEXT, so that arguments nest at most one
+ *  level deep, builds each line as a String, spreading the words of
+ *  justified lines as the original emitLine did, collects every line in
+ *  one List, paginated by its size, formats the endnotes in turn at the
+ *  end, and only then prints the List through a PagePrinter, so that an
+ *  error that stops the formatting leaves no output.  Where the
+ *  formatter deliberately differs from this, Fuzz skips or classifies
+ *  the document.  It has no widow control, source offsets, or events.
+ *  @author Jason Qiu
+ */
+class Reference {
+
+    /** Format the document TEXT, printing the result on OUT and
+     *  reporting all errors to ERRORS.  Returns false iff an error
+     *  stopped the formatting, in which case it is reported last, and
+     *  nothing is printed. */
+    static boolean format(String text, PrintWriter out, ErrorSink errors) {
+        Reference reference = new Reference(errors);
+        try {
+            reference.process(text, false);
+            reference.endWord();
+            reference.endParagraph();
+            reference.writeEndnotes();
+        } catch (FormatException e) {
+            errors.report(e.getMessage());
+            return false;
+        }
+        reference.print(out);
+        return true;
+    }
+
+    /** A new Reference with default settings, reporting its errors to
+     *  ERRORS. */
+    private Reference(ErrorSink errors) {
+        _errors = errors;
+    }
+
+    /** Format the tokens of TEXT, which is an endnote iff ENDNOTE.  As
+     *  with a Scanner, TEXT ends where only whitespace remains. */
+    private void process(String text, boolean endnote) {
+        int last = text.length();
+        while (last > 0 && Character.isWhitespace(text.charAt(last - 1))) {
+            last -= 1;
+        }
+        Matcher token = INPUT_PATTERN.matcher(text);
+        int pos = 0;
+        while (pos < last) {
+            token.region(pos, text.length());
+            token.lookingAt();
+            pos = token.end();
+            if (token.end(TEXT_TOKEN) > -1) {
+                addText(token.group(TEXT_TOKEN));
+            } else if (token.end(BLANK_TOKEN) > -1) {
+                endWord();
+            } else if (token.end(EOP_TOKEN) > -1) {
+                newLine();
+                endWord();
+                endParagraph();
+            } else if (token.end(EOL_TOKEN) > -1) {
+                newLine();
+                endWord();
+            } else if (token.end(ESCAPED_CHAR_TOKEN) > -1) {
+                addText(token.group(ESCAPED_CHAR_TOKEN));
+            } else if (token.end(COMMAND_TOKEN) > -1) {
+                String command = token.group(COMMAND_TOKEN);
+                if (endnote && command.equals("endnote")) {
+                    throw new FormatException("Cannot write endnotes in "
+                                              + "an endnote");
+                }
+                if (token.group(COMMAND_ARG_TOKEN).equals("")) {
+                    command(command, null);
+                    continue;
+                }
+                Matcher balanced = BALANCED_TEXT.matcher(text);
+                balanced.region(pos, text.length());
+                if (!balanced.lookingAt()) {
+                    throw new FormatException("Command not well formed.");
+                }
+                pos = balanced.end();
+                String arg = balanced.group(1);
+                if (endnote && command.equals("textheight")) {
+                    continue;
+                }
+                if (arg == null) {
+                    throw new FormatException("Command not well formed.");
+                }
+                if (!endnote && command.equals("textheight")
+                    && arg.equals("0")) {
+                    throw new FormatException("Invalid argument.");
+                }
+                if (!command.equals("endnote")
+                    && !arg.matches("\\d+")
+                    && !(arg.matches("-\\d+")
+                         && command.equals("parindent"))) {
+                    throw new FormatException("Invalid argument.");
+                }
+                command(command, arg);
+            } else {
+                throw new FormatException("Input contains invalid tokens.");
+            }
+        }
+    }
+
+    /** Perform \COMMAND{ARG} or (if ARG is null) \COMMAND. */
+    private void command(String command, String arg) {
+        switch (command) {
+        case "indent":
+            _indentation = Integer.parseInt(arg);
+            break;
+        case "parindent":
+            _parIndentation = Integer.parseInt(arg);
+            break;
+        case "textwidth":
+            _textWidth = Integer.parseInt(arg);
+            break;
+        case "textheight":
+            _textHeight = Integer.parseInt(arg);
+            break;
+        case "parskip":
+            _parSkip = Integer.parseInt(arg);
+            break;
+        case "nofill":
+            _fill = false;
+            break;
+        case "fill":
+            _fill = true;
+            break;
+        case "justify":
+            _justify = true;
+            break;
+        case "nojustify":
+            _justify = false;
+            break;
+        case "endnote":
+            addText("[" + _refNum + "]");
+            _endnotes.add("[" + _refNum + "]\\ " + arg);
+            _refNum += 1;
+            break;
+        default:
+            _errors.report(String.format("unknown command: %s", command));
+            break;
+        }
+    }
+
+    /** Add TEXT to the current word. */
+    private void addText(String text) {
+        _word += text;
+    }
+
+    /** Finish the current word, if any, first finishing the current line
+     *  if the word does not fit on it. */
+    private void endWord() {
+        if (!_word.equals("")) {
+            int lineSize = 0;
+            for (String s : _words) {
+                lineSize += s.length();
+            }
+            int numBlanks =
+                _textWidth - (_indentation + lineSize + _word.length());
+            if (_newParagraph || _firstLine) {
+                numBlanks -= _parIndentation;
+            }
+            if (numBlanks < _words.size() && _fill) {
+                outputLine(false);
+            }
+            _words.add(_word);
+            _word = "";
+        }
+    }
+
+    /** Finish the current line at the end of an input line, unless
+     *  filling or it is empty. */
+    private void newLine() {
+        if (!_fill && !_words.isEmpty()) {
+            _words.add(_word);
+            _word = "";
+            outputLine(true);
+        }
+    }
+
+    /** Finish the current line and start a new paragraph. */
+    private void endParagraph() {
+        outputLine(true);
+        _newParagraph = true;
+    }
+
+    /** Add the current line, if any, to the page, justifying it unless
+     *  not filling or justifying, or it is the LASTLINE of a
+     *  paragraph. */
+    private void outputLine(boolean lastLine) {
+        if (!_words.isEmpty()) {
+            int indent = _indentation;
+            if (_firstLine) {
+                indent += _parIndentation;
+            } else if (_newParagraph) {
+                indent += _parIndentation;
+                for (int i = 0; i < _parSkip; i += 1) {
+                    addLine(null);
+                }
+                _newParagraph = false;
+            }
+            if (!_fill || !_justify || lastLine) {
+                String output = "";
+                for (int i = 0; i < indent; i += 1) {
+                    output += " ";
+                }
+                for (int i = 0; i < _words.size() - 1; i += 1) {
+                    output += _words.get(i) + " ";
+                }
+                addLine(output + _words.get(_words.size() - 1));
+                _words.clear();
+            } else {
+                emitLine(indent);
+            }
+        }
+        _firstLine = false;
+    }
+
+    /** Add the current line to the page, indented by INDENT blanks, with
+     *  three blanks between words if they fit in the text width, and
+     *  otherwise the spare width spread as evenly as possible. */
+    private void emitLine(int indent) {
+        String output = "";
+        for (int i = 0; i < indent; i += 1) {
+            output += " ";
+        }
+        int lineSize = 0;
+        for (String s : _words) {
+            lineSize += s.length();
+        }
+        int b = _textWidth - (indent + lineSize);
+        if (b >= 3 * (_words.size() - 1)) {
+            for (int i = 0; i < _words.size() - 1; i += 1) {
+                _words.set(i, _words.get(i) + "   ");
+            }
+        } else {
+            int totalSpaces = 0;
+            for (int k = 1; k < _words.size(); k += 1) {
+                int condition =
+                    (int) (0.5 + (double) (b * k) / (_words.size() - 1));
+                for (; totalSpaces < condition; totalSpaces += 1) {
+                    _words.set(k - 1, _words.get(k - 1) + " ");
+                }
+            }
+        }
+        for (String s : _words) {
+            output += s;
+        }
+        addLine(output);
+        _words.clear();
+    }
+
+    /** Add LINE to the page, starting a new page with it if the last is
+     *  full.  A null LINE is a skipped line, ignored at the top of a
+     *  page. */
+    private void addLine(String line) {
+        if (line != null) {
+            if (!_lines.isEmpty() && _lines.size() % _textHeight == 0) {
+                line = "\f" + line;
+            }
+            _lines.add(line);
+        } else if (_lines.size() % _textHeight != 0) {
+            _lines.add("");
+        }
+    }
+
+    /** Format the endnotes, in turn, with the endnote settings. */
+    private void writeEndnotes() {
+        _fill = _justify = true;
+        _parSkip = Defaults.ENDNOTE_PARAGRAPH_SKIP;
+        _indentation = Defaults.ENDNOTE_INDENTATION;
+        _parIndentation = Defaults.ENDNOTE_PARAGRAPH_INDENTATION;
+        _textWidth = Defaults.ENDNOTE_TEXT_WIDTH;
+        for (String endnote : _endnotes) {
+            process(endnote, true);
+            endWord();
+            endParagraph();
+        }
+    }
+
+    /** Print my lines on OUT through a PagePrinter. */
+    private void print(PrintWriter out) {
+        PageAssembler printer = new PagePrinter(out);
+        for (String line : _lines) {
+            printer.addLine(line);
+        }
+    }
+
+    /** Symbolic names for the groups in INPUT_PATTERN. */
+    private static final int
+        /** Blank or tab. */
+        BLANK_TOKEN = 1,
+        /** End of line or paragraph. */
+        EOL_TOKEN = 2,
+        /** End of paragraph (>1 newline). */
+        EOP_TOKEN = 3,
+        /** The character after the backslash of \{, \}, \\, or \ . */
+        ESCAPED_CHAR_TOKEN = 4,
+        /** The letters of a command. */
+        COMMAND_TOKEN = 5,
+        /** A '{' immediately following a command, or empty. */
+        COMMAND_ARG_TOKEN = 6,
+        /** Segment of other text. */
+        TEXT_TOKEN = 7;
+
+    /** Matches one token of input, as the original InputParser's
+     *  INPUT_PATTERN did.  A match in none of the groups above is a
+     *  character that should not be here. */
+    private static final Pattern INPUT_PATTERN =
+        Pattern.compile("(?s)(\\p{Blank}+)"
+                        + "|(\\r?\\n((?:\\r?\\n)+)?)"
+                        + "|\\\\([\\p{Blank}{}\\\\])"
+                        + "|\\\\(\\p{Alpha}+)([{]?)"
+                        + "|((?:[^\\p{Blank}\\r\\n\\\\{}]+))"
+                        + "|(.)");
+
+    /** Matches the rest of an argument after its {, as the original
+     *  InputParser's BALANCED_TEXT did.  If it matches and group 1 is
+     *  null, the argument was not well formed: its } was missing or it
+     *  was nested more than one level deep. */
+    private static final Pattern BALANCED_TEXT =
+        Pattern.compile("(?s)((?:\\\\.|[^\\\\{}]"
+                        + "|[{](?:\\\\.|[^\\\\{}])*[}])*)"
+                        + "\\}|.");
+
+    /** Destination of error messages. */
+    private final ErrorSink _errors;
+    /** All lines, each prefixed with a form feed if it starts a page
+     *  after the first. */
+    private final List<String> _lines = new ArrayList<String>();
+    /** Texts of the endnotes, each starting with its reference. */
+    private final List<String> _endnotes = new ArrayList<String>();
+    /** Number of the next endnote. */
+    private int _refNum = 1;
+    /** The current word. */
+    private String _word = "";
+    /** The words of the current line. */
+    private final List<String> _words = new ArrayList<String>();
+    /** True iff no line has been output. */
+    private boolean _firstLine = true;
+    /** True iff the next line starts a paragraph. */
+    private boolean _newParagraph;
+    /** Filling and justification modes. */
+    private boolean _fill = true, _justify = true;
+    /** Settings of the numeric parameters. */
+    private int _indentation = Defaults.INDENTATION,
+        _parIndentation = Defaults.PARAGRAPH_INDENTATION,
+        _textWidth = Defaults.TEXT_WIDTH,
+        _textHeight = Defaults.TEXT_HEIGHT,
+        _parSkip = Defaults.PARAGRAPH_SKIP;
+
+}
@@ -0,0 +1,454 @@
+package tex61;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A run of whole paragraphs of a document, together with the settings
+ *  in effect at its start, that can be formatted into lines independently
+ *  of (and in another process from) the rest of the document.  Only
+ *  pagination and the formatting of endnotes then remain to be done
+ *  centrally.
+ *  @author Jason Qiu
+ */
+class Shard {
+
+    /** The formatted form of a Shard. */
+    static class Result implements ErrorSink {
+
+        /** Record error message MSG. */
+        @Override
+        public void report(String msg) {
+            errors.add(msg);
+        }
+
+        /** Write me to OUT, to be restored by read. */
+        void write(DataOutputStream out) throws IOException {
+            lines.write(out);
+            writeStrings(out, endnotes);
+            for (long offset : endnoteOffsets) {
+                out.writeLong(offset);
+            }
+            writeStrings(out, errors);
+            out.writeBoolean(fatal != null);
+            if (fatal != null) {
+                writeString(out, fatal);
+            }
+        }
+
+        /** Returns a Result written to IN by write. */
+        static Result read(DataInputStream in) throws IOException {
+            Result result = new Result();
+            result.lines.read(in);
+            readStrings(in, result.endnotes);
+            for (int k = 0; k < result.endnotes.size(); k += 1) {
+                result.endnoteOffsets.add(in.readLong());
+            }
+            readStrings(in, result.errors);
+            if (in.readBoolean()) {
+                result.fatal = readString(in);
+            }
+            return result;
+        }
+
+        /** Formatted lines and text height changes. */
+        final LineBuffer lines = new LineBuffer();
+        /** Unformatted texts of endnotes, with their references. */
+        final List<String> endnotes = new ArrayList<String>();
+        /** Source offsets of endnotes, as for Controller.addEndnote. */
+        final List<Long> endnoteOffsets = new ArrayList<Long>();
+        /** Error messages reported while formatting. */
+        final List<String> errors = new ArrayList<String>();
+        /** Message of the error that stopped formatting, or null. */
+        String fatal;
+    }
+
+    /** A Shard at the start of a document, with default settings and
+     *  no text. */
+    Shard() {
+        _text = "";
+        _first = _last = true;
+        _textWidth = Defaults.TEXT_WIDTH;
+        _indentation = Defaults.INDENTATION;
+        _parIndentation = Defaults.PARAGRAPH_INDENTATION;
+        _parSkip = Defaults.PARAGRAPH_SKIP;
+        _fill = _justify = true;
+        _refNum = 1;
+    }
+
+    /** Returns TEXT broken into Shards of at least SIZE characters, each
+     *  but the last ending at a paragraph break, as produced by a
+     *  Splitter. */
+    static List<Shard> split(String text, int size) {
+        List<Shard> shards = new ArrayList<Shard>();
+        Splitter splitter = new Splitter(text, size);
+        while (splitter.hasNext()) {
+            shards.add(splitter.next());
+        }
+        return shards;
+    }
+
+    /** Breaks a text into Shards one at a time, as it is read, so that
+     *  formatting of the first can start before the rest of the text is
+     *  read, and so that no more of the text than the Shard being split
+     *  need be held at once. */
+    static class Splitter {
+
+        /** A Splitter that breaks TEXT into Shards of at least SIZE
+         *  characters, each but the last ending at a paragraph break. */
+        Splitter(String text, int size) {
+            this(new StringReader(text), size, text.length());
+        }
+
+        /** A Splitter that breaks the text read from INPUT into Shards of
+         *  at least SIZE characters, each but the last ending at a
+         *  paragraph break.  The text is scanned once, as it is read,
+         *  tracking the commands that change the settings, to find the
+         *  settings at the start of each Shard.  Should the text contain
+         *  an error, the rest of it from the last paragraph break before
+         *  the error forms the last Shard, so that formatting reports the
+         *  error. */
+        Splitter(Reader input, int size) {
+            this(input, size, -1);
+        }
+
+        /** A Splitter that breaks the text read from INPUT, which is
+         *  LENGTH characters long, or of unknown length if LENGTH < 0,
+         *  into Shards of at least SIZE characters. */
+        private Splitter(final Reader input, int size, int length) {
+            _input = new Reader() {
+                @Override
+                public int read(char[] buf, int off, int len)
+                    throws IOException {
+                    int n = input.read(buf, off, len);
+                    if (n > 0) {
+                        _pending.append(buf, off, n);
+                        _characters += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    input.close();
+                }
+            };
+            _size = size;
+            _length = length;
+            _lexer = new Lexer(_input);
+        }
+
+        /** Returns true iff there are more Shards. */
+        boolean hasNext() {
+            return _next != null;
+        }
+
+        /** Returns the next Shard.  Assumes hasNext(). */
+        Shard next() {
+            Shard next = _next;
+            if (_length < 0 || _length - _start >= _size) {
+                try {
+                    for (int kind = _lexer.next(); kind != Lexer.EOF;
+                         kind = _lexer.next()) {
+                        if (kind == Lexer.EOP
+                            && _lexer.offset() - _start >= _size) {
+                            long end = _lexer.offset();
+                            int n = (int) (end - _start);
+                            next._text = _pending.substring(0, n);
+                            _pending.delete(0, n);
+                            _state._first = false;
+                            _next = _state.copy(end);
+                            _start = end;
+                            return next;
+                        } else if (kind == Lexer.COMMAND) {
+                            scanCommand();
+                        } else if (kind == Lexer.ERROR) {
+                            break;
+                        }
+                    }
+                } catch (FormatException | NumberFormatException e) {
+                    /* Formatting the last Shard will report the error. */
+                }
+            }
+            drain();
+            next._text = _pending.toString();
+            next._last = true;
+            _pending.setLength(0);
+            _next = null;
+            return next;
+        }
+
+        /** Returns the number of characters read so far. */
+        long characters() {
+            return _characters;
+        }
+
+        /** Returns the IOException thrown by my input while reading, or
+         *  null if there was none.  The text read before it is split as
+         *  if it were the whole text. */
+        IOException ioException() {
+            return _lexer.ioException() != null ? _lexer.ioException()
+                : _ioException;
+        }
+
+        /** Read the rest of my input into _pending. */
+        private void drain() {
+            if (ioException() != null) {
+                return;
+            }
+            char[] buf = new char[BUFFER_SIZE];
+            try {
+                while (_input.read(buf) >= 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                _ioException = e;
+            }
+        }
+
+        /** Apply the command just scanned by _lexer to _state. */
+        private void scanCommand() {
+            String command = _lexer.text();
+            if (command.equals("endnote")) {
+                if (_lexer.hasArgument()) {
+                    _lexer.argument(null);
+                }
+                _state._refNum += 1;
+            } else {
+                _state.apply(command, _lexer.hasArgument()
+                             ? _lexer.argument() : null);
+            }
+        }
+
+        /** Size of the buffer used to read the rest of my input. */
+        private static final int BUFFER_SIZE = 8192;
+
+        /** My input, which appends all that is read from it to
+         *  _pending. */
+        private final Reader _input;
+        /** Text read from _input, from the start of _next on. */
+        private final StringBuilder _pending = new StringBuilder();
+        /** Least size of a Shard. */
+        private final int _size;
+        /** Length of my text, or -1 if unknown. */
+        private final int _length;
+        /** Scans _input. */
+        private final Lexer _lexer;
+        /** Settings at the point _lexer has reached. */
+        private final Shard _state = new Shard();
+        /** The Shard to be returned next, lacking its text, or null if
+         *  there are no more. */
+        private Shard _next = _state.copy(0);
+        /** Offset in my text of the start of _next. */
+        private long _start;
+        /** Number of characters read from _input. */
+        private long _characters;
+        /** The IOException thrown by _input while draining it, or
+         *  null. */
+        private IOException _ioException;
+    }
+
+    /** Returns my text. */
+    String text() {
+        return _text;
+    }
+
+    /** Returns a copy of me whose text is TEXT, which must leave the
+     *  settings at the start of the next Shard as mine did. */
+    Shard withText(String text) {
+        Shard shard = copy(_offset);
+        shard._last = _last;
+        shard._text = text;
+        return shard;
+    }
+
+    /** Returns the offset of my text within its document. */
+    long offset() {
+        return _offset;
+    }
+
+    /** Returns the result of formatting my text.  An error in the text
+     *  that stops the formatting is recorded in the result; anything
+     *  else thrown, which would be a bug in the formatter, is not
+     *  caught. */
+    Result format() {
+        Result result = new Result();
+        Controller controller = new Controller(result.lines, result);
+        if (!_first) {
+            controller.endParagraph();
+        }
+        controller.setTextWidth(_textWidth);
+        controller.setIndentation(_indentation);
+        controller.setParIndentation(_parIndentation);
+        controller.setParSkip(_parSkip);
+        controller.setFill(_fill);
+        controller.setJustify(_justify);
+        controller.setNextEndnote(_refNum);
+        InputParser parser = new InputParser(_text, controller);
+        parser.setFollowed(!_last);
+        parser.setBaseOffset(_offset);
+        try {
+            parser.process();
+        } catch (FormatException e) {
+            result.fatal = e.getMessage();
+        }
+        for (int k = 0; k < controller.endnotes().size(); k += 1) {
+            result.endnotes.add(controller.endnotes().get(k).toString());
+            result.endnoteOffsets.add(controller.endnoteOffset(k));
+        }
+        return result;
+    }
+
+    /** Write me to OUT, to be restored by read. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(_offset);
+        out.writeBoolean(_first);
+        out.writeBoolean(_last);
+        out.writeInt(_textWidth);
+        out.writeInt(_indentation);
+        out.writeInt(_parIndentation);
+        out.writeInt(_parSkip);
+        out.writeBoolean(_fill);
+        out.writeBoolean(_justify);
+        out.writeInt(_refNum);
+        writeString(out, _text);
+    }
+
+    /** Returns a Shard written to IN by write. */
+    static Shard read(DataInputStream in) throws IOException {
+        Shard shard = new Shard();
+        shard._offset = in.readLong();
+        shard._first = in.readBoolean();
+        shard._last = in.readBoolean();
+        shard._textWidth = in.readInt();
+        shard._indentation = in.readInt();
+        shard._parIndentation = in.readInt();
+        shard._parSkip = in.readInt();
+        shard._fill = in.readBoolean();
+        shard._justify = in.readBoolean();
+        shard._refNum = in.readInt();
+        shard._text = readString(in);
+        return shard;
+    }
+
+    /** Format Shards read from IN until the end of IN, writing their
+     *  Results to OUT.  This is the main loop of a worker process. */
+    static void serve(DataInputStream in, DataOutputStream out)
+        throws IOException {
+        while (in.readBoolean()) {
+            read(in).format().write(out);
+            out.flush();
+        }
+    }
+
+    /** Write STR to OUT in a form that readString restores.  Unlike
+     *  writeUTF, allows strings of any length. */
+    static void writeString(DataOutputStream out, String str)
+        throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Returns a string written to IN by writeString. */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write STRS to OUT in a form that readStrings restores. */
+    private static void writeStrings(DataOutputStream out, List<String> strs)
+        throws IOException {
+        out.writeInt(strs.size());
+        for (String str : strs) {
+            writeString(out, str);
+        }
+    }
+
+    /** Add to STRS the strings written to IN by writeStrings. */
+    private static void readStrings(DataInputStream in, List<String> strs)
+        throws IOException {
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            strs.add(readString(in));
+        }
+    }
+
+    /** Returns a copy of my settings, for a Shard at offset OFFSET. */
+    private Shard copy(long offset) {
+        Shard shard = new Shard();
+        shard._offset = offset;
+        shard._first = _first;
+        shard._last = false;
+        shard._textWidth = _textWidth;
+        shard._indentation = _indentation;
+        shard._parIndentation = _parIndentation;
+        shard._parSkip = _parSkip;
+        shard._fill = _fill;
+        shard._justify = _justify;
+        shard._refNum = _refNum;
+        return shard;
+    }
+
+    /** Change my settings as \COMMAND{ARG} or (if ARG is null) \COMMAND
+     *  would. */
+    private void apply(String command, String arg) {
+        switch (command) {
+        case "indent":
+            _indentation = Integer.parseInt(arg);
+            break;
+        case "parindent":
+            _parIndentation = Integer.parseInt(arg);
+            break;
+        case "textwidth":
+            _textWidth = Integer.parseInt(arg);
+            break;
+        case "parskip":
+            _parSkip = Integer.parseInt(arg);
+            break;
+        case "nofill":
+            _fill = false;
+            break;
+        case "fill":
+            _fill = true;
+            break;
+        case "justify":
+            _justify = true;
+            break;
+        case "nojustify":
+            _justify = false;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** The text of my paragraphs. */
+    private String _text;
+    /** Offset of _text within its document. */
+    private long _offset;
+    /** True iff I start my document. */
+    private boolean _first;
+    /** True iff I end my document. */
+    private boolean _last;
+    /** Text width at my start. */
+    private int _textWidth;
+    /** Indentation at my start. */
+    private int _indentation;
+    /** Paragraph indentation at my start. */
+    private int _parIndentation;
+    /** Paragraph skip at my start. */
+    private int _parSkip;
+    /** Fill mode at my start. */
+    private boolean _fill;
+    /** Justify mode at my start. */
+    private boolean _justify;
+    /** Number of my first endnote. */
+    private int _refNum;
+
+}
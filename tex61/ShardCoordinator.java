@@ -0,0 +1,399 @@
+package tex61;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Formats a document by splitting it into Shards, having a number of
+ *  worker processes (each running "java tex61.Main --worker") format the
+ *  Shards into lines, and then paginating the lines and formatting the
+ *  endnotes centrally.  Workers communicate with the coordinator through
+ *  their standard input and output.
+ *  @author Jason Qiu
+ */
+class ShardCoordinator {
+
+    /** A new ShardCoordinator that uses WORKERS worker processes. */
+    ShardCoordinator(int workers) {
+        _workers = workers;
+        _minShardSize = MIN_SHARD_SIZE;
+    }
+
+    /** Make no Shard (except the last) smaller than SIZE characters.  By
+     *  default, this is large enough that small documents are not split
+     *  at all. */
+    void setMinShardSize(int size) {
+        _minShardSize = size;
+    }
+
+    /** Record the source positions of the lines of each document
+     *  formatted hereafter in MAP, replacing its contents, or (if MAP is
+     *  null) nowhere. */
+    void setSourceMap(SourceMap map) {
+        _sourceMap = map;
+    }
+
+    /** Iff ON, keep paragraphs of each document formatted hereafter from
+     *  leaving single lines at the tops and bottoms of pages. */
+    void setWidowControl(boolean on) {
+        _widowControl = on;
+    }
+
+    /** Format the endnotes of each document formatted hereafter with
+     *  EXECUTOR, as for Controller.setEndnoteExecutor. */
+    void setEndnoteExecutor(Executor executor) {
+        _endnoteExecutor = executor;
+    }
+
+    /** Format the document read from INPUT, writing the result to OUTPUT
+     *  and reporting all errors to ERRORS.  The document is split into
+     *  Shards as it is read, at most SHARDS_PER_WORKER per worker ahead
+     *  of the one whose lines are being paginated, and each page is
+     *  printed as soon as it is complete, so that the document need not
+     *  be held whole.  Unlike a Formatter, then, an error that stops the
+     *  formatting leaves the pages printed before it.  A document that
+     *  fits in one Shard is formatted in this process, since starting a
+     *  worker would take longer.  Should a worker take longer than the
+     *  worker timeout over a Shard, it is destroyed and formatting fails.
+     *  Returns the number of errors reported. */
+    int format(Reader input, PrintWriter output, ErrorSink errors)
+        throws IOException {
+        Events.Document event = Events.document();
+        Shard.Splitter splitter = new Shard.Splitter(input, _minShardSize);
+        final BlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+        ArrayDeque<Task> ahead = new ArrayDeque<Task>();
+        List<Process> processes = new ArrayList<Process>();
+        Collector collector = collector(output, errors);
+        int shards = 0;
+        try {
+            while (true) {
+                while (splitter.hasNext()
+                       && ahead.size() < SHARDS_PER_WORKER * _workers) {
+                    Task task = new Task(splitter.next());
+                    shards += 1;
+                    ahead.add(task);
+                    if (shards == 1 && !splitter.hasNext()) {
+                        task.result.complete(task.shard.format());
+                        break;
+                    }
+                    if (processes.size() < Math.min(_workers,
+                                                    ahead.size())) {
+                        final Process process = startWorker();
+                        processes.add(process);
+                        Thread feeder = new Thread() {
+                            @Override
+                            public void run() {
+                                feed(process, tasks);
+                            }
+                        };
+                        feeder.setDaemon(true);
+                        feeder.start();
+                    }
+                    tasks.add(task);
+                }
+                if (splitter.ioException() != null) {
+                    throw splitter.ioException();
+                }
+                if (ahead.isEmpty()
+                    || !collector.add(await(ahead.remove(), ahead))) {
+                    break;
+                }
+            }
+            int count = collector.close();
+            if (event != null) {
+                event.characters = splitter.characters();
+                event.shards = shards;
+                event.errors = count;
+                event.commit();
+            }
+            return count;
+        } finally {
+            for (int w = 0; w < processes.size(); w += 1) {
+                tasks.add(STOP);
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /** Have no worker spend more than MILLIS milliseconds formatting a
+     *  Shard.  A worker that does is assumed to be hung. */
+    void setWorkerTimeout(long millis) {
+        _workerTimeout = millis;
+    }
+
+    /** A Shard to be formatted by a worker, and its Result. */
+    private static class Task {
+
+        /** A Task to format SHARD. */
+        Task(Shard shard) {
+            this.shard = shard;
+        }
+
+        /** The Shard to format. */
+        final Shard shard;
+        /** Its Result. */
+        final CompletableFuture<Shard.Result> result =
+            new CompletableFuture<Shard.Result>();
+        /** Value of System.nanoTime() when the Shard was sent. */
+        volatile long sent;
+        /** The process it was sent to, or null if not yet sent. */
+        volatile Process process;
+    }
+
+    /** Returns the Result of TASK, waiting as needed, and checking
+     *  meanwhile that neither it nor any of OTHERS has failed or taken
+     *  longer than the worker timeout.  A worker that has is destroyed,
+     *  and an IOException thrown. */
+    private Shard.Result await(Task task, Collection<Task> others)
+        throws IOException {
+        while (true) {
+            try {
+                return task.result.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw new IOException("worker process failed", e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while "
+                                                 + "awaiting worker");
+            } catch (TimeoutException e) {
+                check(task);
+                for (Task other : others) {
+                    check(other);
+                }
+            }
+        }
+    }
+
+    /** Throw an IOException if TASK has failed, or if it has been with
+     *  its worker for longer than the worker timeout, in which case the
+     *  worker is first destroyed. */
+    private void check(Task task) throws IOException {
+        if (task.result.isCompletedExceptionally()) {
+            try {
+                task.result.join();
+            } catch (CompletionException e) {
+                throw new IOException("worker process failed", e.getCause());
+            }
+        }
+        Process process = task.process;
+        if (process != null && !task.result.isDone()
+            && System.nanoTime() - task.sent
+               > TimeUnit.MILLISECONDS.toNanos(_workerTimeout)) {
+            process.destroyForcibly();
+            throw new IOException(String.format("worker process took "
+                                                + "more than %d ms",
+                                                _workerTimeout));
+        }
+    }
+
+    /** Have PROCESS format the Shard of each Task taken from TASKS until
+     *  it takes STOP, completing the Task's Result.  Should anything go
+     *  wrong, whether the process fails or its Result cannot be read,
+     *  complete the Result of the Task it was given exceptionally, so
+     *  that format fails at once, and stop, passing on any Error. */
+    private static void feed(Process process, BlockingQueue<Task> tasks) {
+        Task task = null;
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(process.getOutputStream()));
+             DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(process.getInputStream()))) {
+            for (task = tasks.take(); task != STOP; task = tasks.take()) {
+                task.sent = System.nanoTime();
+                task.process = process;
+                out.writeBoolean(true);
+                task.shard.write(out);
+                out.flush();
+                task.result.complete(Shard.Result.read(in));
+            }
+            out.writeBoolean(false);
+        } catch (Throwable e) {
+            if (task != null && task != STOP) {
+                task.result.completeExceptionally(e);
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    /** Paginate the lines of RESULTS and format their endnotes, in order,
+     *  writing the result to OUTPUT and reporting errors to ERRORS, as
+     *  the Results become available.  Stops after the lines of the first
+     *  Result whose formatting failed, as formatting in one process
+     *  would.  Returns the number of errors reported. */
+    int collect(List<CompletableFuture<Shard.Result>> results,
+                PrintWriter output, ErrorSink errors)
+        throws IOException {
+        Collector collector = collector(output, errors);
+        for (CompletableFuture<Shard.Result> future : results) {
+            Shard.Result result;
+            try {
+                result = future.join();
+            } catch (CompletionException e) {
+                throw new IOException("worker process failed", e.getCause());
+            }
+            if (!collector.add(result)) {
+                break;
+            }
+        }
+        return collector.close();
+    }
+
+    /** Returns a Collector that paginates the lines of the Results of
+     *  the Shards of a document and formats its endnotes, writing the
+     *  result to OUTPUT and reporting errors to ERRORS. */
+    Collector collector(PrintWriter output, ErrorSink errors) {
+        Controller controller = new Controller(output, errors);
+        controller.setWidowControl(_widowControl);
+        if (_endnoteExecutor != null) {
+            controller.setEndnoteExecutor(_endnoteExecutor);
+        }
+        if (_sourceMap != null) {
+            _sourceMap.clear();
+            controller.setSourceMap(_sourceMap);
+        }
+        return new Collector(controller, output, errors);
+    }
+
+    /** Combines the Results of the Shards of a document, added one at a
+     *  time in order, as collect does. */
+    static class Collector {
+
+        /** A Collector that adds Results to CONTROLLER, which writes to
+         *  OUTPUT and reports errors to ERRORS. */
+        Collector(Controller controller, PrintWriter output,
+                  ErrorSink errors) {
+            _controller = controller;
+            _output = output;
+            _errors = errors;
+        }
+
+        /** Paginate the lines of RESULT, the next Result, and start
+         *  formatting its endnotes.  Returns false if formatting RESULT
+         *  failed, after reporting why, in which case no more Results may
+         *  be added. */
+        boolean add(Shard.Result result) {
+            for (String msg : result.errors) {
+                _controller.reportError("%s", msg);
+            }
+            _controller.addLines(result.lines);
+            _controller.printLines();
+            if (result.fatal != null) {
+                _output.flush();
+                _errors.report(result.fatal);
+                _failed = true;
+                return false;
+            }
+            for (int k = 0; k < result.endnotes.size(); k += 1) {
+                _controller.addEndnote(result.endnotes.get(k),
+                                       result.endnoteOffsets.get(k));
+            }
+            return true;
+        }
+
+        /** Print up to LIMIT lines of the endnotes of the document, once
+         *  all its Results have been added, as close would.  Returns true
+         *  iff lines remain, which close prints.  Only when the endnotes
+         *  are formatted concurrently, as by default. */
+        boolean printEndnotes(int limit) {
+            if (_failed) {
+                return false;
+            }
+            try {
+                return _controller.printEndnotes(limit);
+            } catch (FormatException e) {
+                _output.flush();
+                _errors.report(e.getMessage());
+                _failed = true;
+                return false;
+            }
+        }
+
+        /** Finish the document, unless a Result failed, and return the
+         *  number of errors reported. */
+        int close() {
+            if (_failed) {
+                return _controller.errorCount() + 1;
+            }
+            try {
+                _controller.close();
+            } catch (FormatException e) {
+                _output.flush();
+                _errors.report(e.getMessage());
+                return _controller.errorCount() + 1;
+            }
+            return _controller.errorCount();
+        }
+
+        /** Paginates the lines and formats the endnotes. */
+        private final Controller _controller;
+        /** Where the document is written. */
+        private final PrintWriter _output;
+        /** Where errors are reported. */
+        private final ErrorSink _errors;
+        /** True iff a Result failed. */
+        private boolean _failed;
+    }
+
+    /** Returns a new worker process, running on the same Java installation
+     *  and class path as this one. */
+    private static Process startWorker() throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("tex61.Main");
+        command.add("--worker");
+        return new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /** Tells a feeder to stop. */
+    private static final Task STOP = new Task(null);
+    /** Interval, in milliseconds, between checks on workers. */
+    private static final long POLL_INTERVAL = 100;
+    /** Default longest time, in milliseconds, a worker may spend
+     *  formatting a Shard. */
+    private static final long WORKER_TIMEOUT = 60000;
+    /** Default smallest size of a Shard worth sending to a worker. */
+    private static final int MIN_SHARD_SIZE = 1 << 18;
+    /** Number of Shards per worker split ahead of those paginated, so
+     *  that workers share the work evenly. */
+    private static final int SHARDS_PER_WORKER = 4;
+
+    /** Number of worker processes. */
+    private final int _workers;
+    /** Smallest size of a Shard. */
+    private int _minShardSize;
+    /** Longest time, in milliseconds, a worker may spend formatting a
+     *  Shard. */
+    private long _workerTimeout = WORKER_TIMEOUT;
+    /** Where the source positions of output lines are recorded, or
+     *  null. */
+    private SourceMap _sourceMap;
+    /** True iff widow control is on. */
+    private boolean _widowControl;
+    /** Formats endnotes, or null for the Controller's default. */
+    private Executor _endnoteExecutor;
+
+}
@@ -0,0 +1,327 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/** Tests of formatting documents in Shards.
+ *  @author Jason Qiu
+ */
+public class ShardTest {
+
+    @Test
+    public void testSplit() {
+        String text = "one\n\ntwo\n\nthree\\endnote{x\n\ny} four\n\nfive";
+        List<Shard> shards = Shard.split(text, 1);
+        assertEquals("wrong number of shards", 4, shards.size());
+        assertEquals("wrong first offset", 0, shards.get(0).offset());
+        assertEquals("wrong second offset", 5, shards.get(1).offset());
+        assertEquals("wrong third offset", 10, shards.get(2).offset());
+        assertEquals("text split within an endnote",
+                     text.indexOf("five"), shards.get(3).offset());
+        assertEquals("a single shard expected", 1,
+                     Shard.split(text, text.length()).size());
+    }
+
+    @Test
+    public void testSplitWhileReading() {
+        for (String doc : documents()) {
+            for (int size : new int[] { 1, 7, 50, 400 }) {
+                Shard.Splitter splitter =
+                    new Shard.Splitter(new TrickleReader(doc), size);
+                List<Shard> shards = new ArrayList<Shard>();
+                while (splitter.hasNext()) {
+                    shards.add(splitter.next());
+                }
+                assertEquals("wrong shards read (size " + size + ")",
+                             describe(Shard.split(doc, size)),
+                             describe(shards));
+                assertEquals("wrong character count", doc.length(),
+                             splitter.characters());
+            }
+        }
+    }
+
+    @Test
+    public void testLongOffsets() throws IOException {
+        long offset = SourceMapTest.BEYOND_INT;
+        Shard.Result result = new Shard.Result();
+        result.lines.addLine("line", offset, offset + 4);
+        result.endnotes.add("[1]\\ note");
+        result.endnoteOffsets.add(offset + 10);
+        Shard.Result copy = roundTrip(result);
+        SourceMap map = new SourceMap();
+        Controller controller =
+            new Controller(new PrintWriter(new StringWriter()),
+                           ErrorList.IGNORE);
+        controller.setSourceMap(map);
+        controller.addLines(copy.lines);
+        controller.addEndnote(copy.endnotes.get(0),
+                              copy.endnoteOffsets.get(0));
+        controller.close();
+        assertEquals("wrong line start", offset, map.start(0));
+        assertEquals("wrong line end", offset + 4, map.end(0));
+        assertEquals("wrong endnote start", offset + 10, map.start(1));
+        assertEquals("wrong endnote end", offset + 14, map.end(1));
+    }
+
+    @Test
+    public void testInProcess() throws IOException {
+        for (String doc : documents()) {
+            String expected = formatWhole(doc);
+            for (int size : new int[] { 1, 7, 50, 400 }) {
+                assertEquals("sharded output differs (size " + size + ")",
+                             expected, formatShards(doc, size));
+            }
+        }
+    }
+
+    @Test
+    public void testWorkers() throws IOException {
+        String doc = documents().get(0);
+        ShardCoordinator coordinator = new ShardCoordinator(2);
+        coordinator.setMinShardSize(40);
+        SourceMap map = new SourceMap();
+        coordinator.setSourceMap(map);
+        StringWriter output = new StringWriter();
+        ErrorList errors = new ErrorList();
+        int count = coordinator.format(new StringReader(doc),
+                                       new PrintWriter(output), errors);
+        assertEquals("wrong error count", errors.messages.size(), count);
+        assertEquals("output from workers differs", formatWhole(doc),
+                     errors.messages + output.toString());
+        Formatter formatter = new Formatter();
+        SourceMap expected = new SourceMap();
+        formatter.setSourceMap(expected);
+        formatter.format(doc, new ErrorList());
+        assertEquals("source map from workers differs",
+                     SourceMapTest.describe(expected),
+                     SourceMapTest.describe(map));
+    }
+
+    @Test
+    public void testWidowControl() throws IOException {
+        String doc = documents().get(0);
+        ShardCoordinator coordinator = new ShardCoordinator(2);
+        coordinator.setMinShardSize(40);
+        coordinator.setWidowControl(true);
+        StringWriter output = new StringWriter();
+        coordinator.format(new StringReader(doc), new PrintWriter(output),
+                           new ErrorList());
+        Formatter formatter = new Formatter();
+        formatter.setWidowControl(true);
+        String expected = formatter.format(doc, new ErrorList());
+        assertEquals("output from workers differs", expected,
+                     output.toString());
+        assertNotEquals("widow control had no effect",
+                        new Formatter().format(doc, new ErrorList()),
+                        expected);
+    }
+
+    @Test
+    public void testPrintsAsAdded() throws IOException {
+        String doc = documents().get(0);
+        ShardCoordinator coordinator = new ShardCoordinator(1);
+        StringWriter output = new StringWriter();
+        ShardCoordinator.Collector collector =
+            coordinator.collector(new PrintWriter(output), new ErrorList());
+        List<Shard> shards = Shard.split(doc, 400);
+        collector.add(shards.get(0).format());
+        String first = output.toString();
+        assertNotEquals("nothing printed for the first shard", "", first);
+        for (int k = 1; k < shards.size(); k += 1) {
+            collector.add(shards.get(k).format());
+        }
+        collector.close();
+        assertEquals("printed lines changed", first,
+                     output.toString().substring(0, first.length()));
+    }
+
+    @Test
+    public void testOneShardInProcess() throws IOException {
+        for (String doc : documents()) {
+            ShardCoordinator coordinator = new ShardCoordinator(2);
+            coordinator.setMinShardSize(doc.length() + 1);
+            coordinator.setWorkerTimeout(0);
+            StringWriter output = new StringWriter();
+            ErrorList errors = new ErrorList();
+            coordinator.format(new StringReader(doc),
+                               new PrintWriter(output), errors);
+            List<CompletableFuture<Shard.Result>> results =
+                new ArrayList<CompletableFuture<Shard.Result>>();
+            for (Shard shard : Shard.split(doc, doc.length() + 1)) {
+                results.add(CompletableFuture.completedFuture(
+                                shard.format()));
+            }
+            StringWriter expected = new StringWriter();
+            ErrorList expectedErrors = new ErrorList();
+            PrintWriter out = new PrintWriter(expected);
+            coordinator.collect(results, out, expectedErrors);
+            out.flush();
+            assertEquals("output of one shard differs",
+                         expectedErrors.messages + expected.toString(),
+                         errors.messages + output.toString());
+        }
+    }
+
+    @Test
+    public void testWorkerTimeout() {
+        StringBuilder doc = new StringBuilder();
+        for (int k = 0; k < 200; k += 1) {
+            doc.append(documents().get(0));
+        }
+        ShardCoordinator coordinator = new ShardCoordinator(1);
+        coordinator.setWorkerTimeout(0);
+        long start = System.nanoTime();
+        try {
+            coordinator.format(new StringReader(doc.toString()),
+                               new PrintWriter(new StringWriter()),
+                               new ErrorList());
+            fail("worker not timed out");
+        } catch (IOException e) {
+            assertTrue("timeout took too long",
+                       System.nanoTime() - start < 30_000_000_000L);
+        }
+    }
+
+    /** Returns the errors and output from formatting TEXT in one piece. */
+    private String formatWhole(String text) {
+        ErrorList errors = new ErrorList();
+        String output = new Formatter().format(text, errors);
+        return errors.messages + output;
+    }
+
+    /** Returns the errors and output from formatting TEXT in Shards of
+     *  at least SIZE characters, each sent through a stream and formatted
+     *  separately, as a worker process would. */
+    private String formatShards(String text, int size) throws IOException {
+        StringWriter output = new StringWriter();
+        ErrorList errors = new ErrorList();
+        Controller controller = new Controller(new PrintWriter(output),
+                                               errors);
+        for (Shard shard : Shard.split(text, size)) {
+            Shard.Result result = roundTrip(roundTrip(shard).format());
+            for (String msg : result.errors) {
+                controller.reportError("%s", msg);
+            }
+            controller.addLines(result.lines);
+            if (result.fatal != null) {
+                errors.report(result.fatal);
+                return errors.messages + output.toString();
+            }
+            for (int k = 0; k < result.endnotes.size(); k += 1) {
+                controller.addEndnote(result.endnotes.get(k),
+                                      result.endnoteOffsets.get(k));
+            }
+        }
+        controller.close();
+        return errors.messages + output.toString();
+    }
+
+    /** Returns the offsets and texts of SHARDS. */
+    private List<String> describe(List<Shard> shards) {
+        List<String> result = new ArrayList<String>();
+        for (Shard shard : shards) {
+            result.add(shard.offset() + ":" + shard.text());
+        }
+        return result;
+    }
+
+    /** A Reader of a string that returns at most a few characters from
+     *  each read. */
+    private static class TrickleReader extends Reader {
+
+        /** A TrickleReader of TEXT. */
+        TrickleReader(String text) {
+            _text = text;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (_pos == _text.length()) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(3, _text.length() - _pos));
+            _text.getChars(_pos, _pos + n, buf, off);
+            _pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /** The text read. */
+        private final String _text;
+        /** Number of characters of _text read. */
+        private int _pos;
+    }
+
+    /** Returns SHARD, written to bytes and read back. */
+    private Shard roundTrip(Shard shard) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        shard.write(new DataOutputStream(bytes));
+        return Shard.read(new DataInputStream(
+                   new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /** Returns RESULT, written to bytes and read back. */
+    private Shard.Result roundTrip(Shard.Result result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        result.write(new DataOutputStream(bytes));
+        return Shard.Result.read(new DataInputStream(
+                   new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /** Returns documents whose settings change between paragraphs. */
+    private List<String> documents() {
+        List<String> docs = new ArrayList<>();
+        StringBuilder text = new StringBuilder("\\textheight{9}");
+        for (int i = 0; i < 40; i += 1) {
+            text.append("Paragraph ").append(i)
+                .append(" has a few words to fill and justify.");
+            if (i % 3 == 0) {
+                text.append("\\endnote{Note ").append(i)
+                    .append(" \\parindent{1} text.\n\nMore.}");
+            }
+            if (i % 7 == 0) {
+                text.append("\\textwidth{").append(25 + i)
+                    .append("}\\parindent{").append(i % 5).append("}");
+            }
+            if (i % 11 == 0) {
+                text.append("\\nofill Some   lines\nkept as is\n");
+            }
+            if (i % 13 == 0) {
+                text.append("\\fill\\nojustify\\indent{2}\\parskip{2}");
+            }
+            if (i % 17 == 0) {
+                text.append("\\justify\\textheight{5}\\bogus");
+            }
+            text.append(i % 2 == 0 ? "\n\n" : "\n \n\n");
+        }
+        docs.add(text.toString());
+        docs.add(text + "\\textwidth{x} rest\n\nof it");
+        docs.add(text + "trailing  \n \t \n");
+        docs.add("");
+        docs.add("\n\n\n");
+        docs.add("\\nofill\none\n\ntwo \n\n\\fill three");
+        return docs;
+    }
+
+}
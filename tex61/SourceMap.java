@@ -0,0 +1,209 @@
+package tex61;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/** A map between the formatted lines of a document and the ranges of its
+ *  source text from which they came.  Each non-blank output line is an
+ *  entry, identified by its page and its line within the page (both
+ *  numbered from 1), and covering the characters of the source from its
+ *  first word to its last.  Entries are kept in output order in parallel
+ *  arrays: first those of the main text, then those of the endnotes.
+ *  Each of these runs is also in order of source offset, so that both
+ *  kinds of lookup are binary searches.  A SourceMap may be saved with
+ *  the output and read back, so that positions may be looked up without
+ *  formatting the document again.
+ *  @author Jason Qiu
+ */
+public class SourceMap {
+
+    /** A new, empty SourceMap. */
+    public SourceMap() {
+        clear();
+    }
+
+    /** Returns the number of entries (mapped output lines). */
+    public int size() {
+        return _size;
+    }
+
+    /** Returns the page of entry K. */
+    public int page(int k) {
+        return _pages[k];
+    }
+
+    /** Returns the line within its page of entry K. */
+    public int line(int k) {
+        return _lines[k];
+    }
+
+    /** Returns the offset in the source of the start of the text of entry
+     *  K. */
+    public long start(int k) {
+        return _starts[k];
+    }
+
+    /** Returns the offset in the source just past the text of entry K. */
+    public long end(int k) {
+        return _ends[k];
+    }
+
+    /** Returns the entry for line LINE of page PAGE, or -1 if that line
+     *  is blank or does not exist. */
+    public int find(int page, int line) {
+        int lo = 0, hi = _size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_pages[mid] < page
+                || (_pages[mid] == page && _lines[mid] < line)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < _size && _pages[lo] == page && _lines[lo] == line) {
+            return lo;
+        }
+        return -1;
+    }
+
+    /** Returns the entry whose text contains the source character at
+     *  OFFSET or, if none does (as for the characters of commands and
+     *  whitespace), the first entry of the main text after OFFSET.
+     *  An endnote line takes precedence over the line of main text that
+     *  refers to it.  Returns -1 if OFFSET is past all text. */
+    public int find(long offset) {
+        int k = firstEndingAfter(offset, _mainSize, _size);
+        if (k < _size && _starts[k] <= offset) {
+            return k;
+        }
+        k = firstEndingAfter(offset, 0, _mainSize);
+        return k < _mainSize ? k : -1;
+    }
+
+    /** Write me to OUT, to be restored by read.  OUT is flushed, but not
+     *  closed. */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(_size);
+        data.writeInt(_mainSize);
+        for (int[] column : new int[][] { _pages, _lines }) {
+            for (int k = 0; k < _size; k += 1) {
+                data.writeInt(column[k]);
+            }
+        }
+        for (long[] column : new long[][] { _starts, _ends }) {
+            for (int k = 0; k < _size; k += 1) {
+                data.writeLong(column[k]);
+            }
+        }
+        data.flush();
+    }
+
+    /** Returns a SourceMap written to IN by write. */
+    public static SourceMap read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a source map");
+        }
+        SourceMap map = new SourceMap();
+        int size = data.readInt();
+        map._mainSize = data.readInt();
+        map._pages = new int[size];
+        map._lines = new int[size];
+        map._starts = new long[size];
+        map._ends = new long[size];
+        for (int[] column : new int[][] { map._pages, map._lines }) {
+            for (int k = 0; k < size; k += 1) {
+                column[k] = data.readInt();
+            }
+        }
+        for (long[] column : new long[][] { map._starts, map._ends }) {
+            for (int k = 0; k < size; k += 1) {
+                column[k] = data.readLong();
+            }
+        }
+        map._size = size;
+        return map;
+    }
+
+    /** Remove all entries. */
+    void clear() {
+        _size = _mainSize = 0;
+        _inEndnotes = false;
+        _pages = new int[INITIAL_SIZE];
+        _lines = new int[INITIAL_SIZE];
+        _starts = new long[INITIAL_SIZE];
+        _ends = new long[INITIAL_SIZE];
+    }
+
+    /** Add an entry for line LINE of page PAGE, whose text came from
+     *  source offsets START to END.  Entries must be added in output
+     *  order. */
+    void add(int page, int line, long start, long end) {
+        if (_size == _pages.length) {
+            int n = Math.max(INITIAL_SIZE, 2 * _size);
+            _pages = Arrays.copyOf(_pages, n);
+            _lines = Arrays.copyOf(_lines, n);
+            _starts = Arrays.copyOf(_starts, n);
+            _ends = Arrays.copyOf(_ends, n);
+        }
+        _pages[_size] = page;
+        _lines[_size] = line;
+        _starts[_size] = start;
+        _ends[_size] = end;
+        _size += 1;
+        if (!_inEndnotes) {
+            _mainSize = _size;
+        }
+    }
+
+    /** Indicate that the entries added hereafter, until the next clear,
+     *  are lines of endnotes. */
+    void startEndnotes() {
+        _inEndnotes = true;
+    }
+
+    /** Returns the first entry among entries LO to HI-1 whose text ends
+     *  after OFFSET, or HI if there is none.  Assumes that the entries
+     *  are in order of source offset. */
+    private int firstEndingAfter(long offset, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_ends[mid] <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Identifies a file written by write: "TX62".  ("TX61" files, whose
+     *  offsets were ints, are not read.) */
+    private static final int MAGIC = 0x54583632;
+    /** Initial capacity of the arrays. */
+    private static final int INITIAL_SIZE = 64;
+
+    /** Number of entries. */
+    private int _size;
+    /** Number of entries for lines of the main text, which precede those
+     *  for endnotes. */
+    private int _mainSize;
+    /** True iff entries now being added are lines of endnotes. */
+    private boolean _inEndnotes;
+    /** Page of each entry. */
+    private int[] _pages;
+    /** Line within its page of each entry. */
+    private int[] _lines;
+    /** Source offset of the start of each entry. */
+    private long[] _starts;
+    /** Source offset of the end of each entry. */
+    private long[] _ends;
+
+}
@@ -0,0 +1,182 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Tests of SourceMaps.
+ *  @author Jason Qiu
+ */
+public class SourceMapTest {
+
+    @Test
+    public void testEntries() {
+        SourceMap map = new SourceMap();
+        String output = format(DOCUMENT, map);
+        List<List<String>> pages = pages(output);
+        int mapped = 0;
+        for (List<String> page : pages) {
+            for (String line : page) {
+                if (!line.trim().isEmpty()) {
+                    mapped += 1;
+                }
+            }
+        }
+        assertEquals("some lines not mapped", mapped, map.size());
+        for (int k = 0; k < map.size(); k += 1) {
+            String line = pages.get(map.page(k) - 1).get(map.line(k) - 1);
+            String[] words = line.trim().split(" +");
+            String source = DOCUMENT.substring((int) map.start(k),
+                                               (int) map.end(k));
+            String first = words[0].replaceAll("\\[\\d+\\]", "");
+            String last = words[words.length - 1];
+            assertTrue("wrong start of " + line, source.startsWith(first));
+            assertEquals("wrong line", k, map.find(map.page(k), map.line(k)));
+            assertEquals("wrong offset", k, map.find(map.start(k)));
+            if (!last.endsWith("]")) {
+                assertTrue("wrong end of " + line, source.endsWith(last));
+                assertEquals("wrong offset", k, map.find(map.end(k) - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testFind() {
+        SourceMap map = new SourceMap();
+        String text = "\\textwidth{12}one two\\endnote{three}\n\n"
+            + "four five six seven\n";
+        format(text, map);
+        int one = map.find(text.indexOf("one"));
+        assertEquals("wrong page", 1, map.page(one));
+        assertEquals("wrong line", 1, map.line(one));
+        assertEquals("command not mapped to following text",
+                     one, map.find(0));
+        int three = map.find(text.indexOf("three"));
+        assertTrue("endnote not preferred", three > one);
+        assertEquals("wrong endnote start", text.indexOf("three"),
+                     map.start(three));
+        assertEquals("wrong endnote range", text.indexOf("three") + 5,
+                     map.end(three));
+        assertEquals("reference not mapped to its line",
+                     map.find(text.indexOf("two")),
+                     map.find(text.indexOf("\\endnote")));
+        int four = map.find(text.indexOf("four"));
+        assertEquals("wrong line", 4, map.line(four));
+        assertEquals("whitespace not mapped to following text",
+                     map.find(text.indexOf("five")),
+                     map.find(text.indexOf("five") - 1));
+        assertEquals("text past the end mapped", -1,
+                     map.find(text.length() - 1));
+        assertEquals("blank line mapped", -1, map.find(1, 3));
+        assertEquals("missing line mapped", -1, map.find(1, 7));
+        assertEquals("missing page mapped", -1, map.find(2, 1));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        SourceMap map = new SourceMap();
+        format(DOCUMENT, map);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.write(bytes);
+        SourceMap copy =
+            SourceMap.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("different copy", describe(map), describe(copy));
+        assertTrue("map is empty", map.size() > 0);
+    }
+
+    @Test
+    public void testLongOffsets() throws IOException {
+        SourceMap expected = new SourceMap();
+        format(DOCUMENT, expected);
+        SourceMap map = new SourceMap();
+        StringWriter output = new StringWriter();
+        Controller controller = new Controller(new PrintWriter(output),
+                                               ErrorList.IGNORE);
+        controller.setSourceMap(map);
+        InputParser parser = new InputParser(DOCUMENT, controller);
+        parser.setBaseOffset(BEYOND_INT);
+        parser.process();
+        assertEquals("wrong number of entries", expected.size(), map.size());
+        for (int k = 0; k < map.size(); k += 1) {
+            assertEquals("wrong start", expected.start(k) + BEYOND_INT,
+                         map.start(k));
+            assertEquals("wrong end", expected.end(k) + BEYOND_INT,
+                         map.end(k));
+            assertEquals("wrong offset", k, map.find(map.start(k)));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.write(bytes);
+        assertEquals("different copy", describe(map),
+                     describe(SourceMap.read(
+                         new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void testReuse() {
+        Formatter formatter = new Formatter();
+        SourceMap map = new SourceMap();
+        formatter.setSourceMap(map);
+        formatter.format("some text\\endnote{in a note}\n\nand more",
+                         ErrorList.IGNORE);
+        formatter.format(DOCUMENT, ErrorList.IGNORE);
+        SourceMap fresh = new SourceMap();
+        format(DOCUMENT, fresh);
+        assertEquals("old entries kept", describe(fresh), describe(map));
+    }
+
+    /** Returns the entries of MAP, as text. */
+    static String describe(SourceMap map) {
+        StringBuilder result = new StringBuilder();
+        for (int k = 0; k < map.size(); k += 1) {
+            result.append(map.page(k)).append(':').append(map.line(k))
+                .append(' ').append(map.start(k)).append('-')
+                .append(map.end(k)).append('\n');
+        }
+        return result.toString();
+    }
+
+    /** Returns the result of formatting TEXT, recording its SourceMap in
+     *  MAP. */
+    private String format(String text, SourceMap map) {
+        Formatter formatter = new Formatter();
+        formatter.setSourceMap(map);
+        return formatter.format(text, ErrorList.IGNORE);
+    }
+
+    /** Returns the lines of each page of OUTPUT. */
+    private List<List<String>> pages(String output) {
+        List<List<String>> pages = new ArrayList<>();
+        for (String page : output.split("\f", -1)) {
+            List<String> lines = new ArrayList<>();
+            for (String line : page.split("\r?\n")) {
+                lines.add(line);
+            }
+            pages.add(lines);
+        }
+        return pages;
+    }
+
+    /** An offset too large for an int. */
+    static final long BEYOND_INT = 5L << 31;
+
+    /** A document of several pages with endnotes. */
+    private static final String DOCUMENT =
+        "\\textheight{6}\\textwidth{30}This is a document whose lines\n"
+        + "are  mapped\tback to their source\\endnote{With a note that is\n"
+        + "long enough to need two lines.} text.\n\n"
+        + "\\nofill Some lines\n   kept as they are, and an\\endnote{x}\n"
+        + "escaped \\{ brace\n\n"
+        + "\\fill\\parskip{2}Another paragraph that goes on and on, well"
+        + " past the end of its page\\endnote{\\textwidth{20}A note with"
+        + " a command.\n\nAnd a second paragraph.} and more.";
+
+}
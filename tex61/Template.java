@@ -0,0 +1,338 @@
+package tex61;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A document to be formatted once for each of many records, as in a
+ *  mail merge.  Each \field{NAME} in its text is replaced by the value of
+ *  field NAME of a record, as plain text: the characters \, {, and } are
+ *  escaped, and line breaks become blanks.  Fields may appear in text and
+ *  in endnotes, but not in the arguments of other commands, nor directly
+ *  after a command without an argument (which would absorb the value's
+ *  letters), so that the settings at the start of each paragraph are the
+ *  same for every record.  A Template is compiled once into Shards of one
+ *  paragraph each.  Shards without fields are formatted into lines at
+ *  once, and only those with fields are formatted for each record, after
+ *  which the lines of all Shards are paginated and the endnotes formatted
+ *  as for the ShardCoordinator.  The result is exactly that of formatting
+ *  the text with the fields replaced.
+ *  @author Jason Qiu
+ */
+class Template {
+
+    /** The Template whose text is TEXT.  Throws a FormatException if
+     *  TEXT has a field in the argument of a command other than \endnote,
+     *  directly after a command without an argument, or without a
+     *  name. */
+    Template(String text) {
+        for (Shard shard : Shard.split(text, 1)) {
+            List<String> pieces = pieces(shard.text());
+            _shards.add(shard);
+            if (pieces.size() == 1) {
+                _pieces.add(null);
+                _results.add(shard.format());
+            } else {
+                _pieces.add(pieces);
+                _results.add(null);
+                for (int k = 1; k < pieces.size(); k += 2) {
+                    _fields.add(pieces.get(k));
+                }
+            }
+        }
+    }
+
+    /** Returns the names of my fields, in order of first appearance. */
+    Set<String> fields() {
+        return _fields;
+    }
+
+    /** Returns the number of paragraphs of my text that have no fields,
+     *  and so are formatted only once. */
+    int staticParagraphs() {
+        int n = 0;
+        for (List<String> pieces : _pieces) {
+            if (pieces == null) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Iff ON, keep paragraphs from leaving single lines at the tops and
+     *  bottoms of pages. */
+    void setWidowControl(boolean on) {
+        _coordinator.setWidowControl(on);
+    }
+
+    /** Format my text with the fields of RECORD, writing the result to
+     *  OUTPUT and reporting errors to ERRORS.  A field that RECORD lacks
+     *  is reported as an error and taken to be empty.  Returns the number
+     *  of errors reported.  May be called by several threads at once. */
+    int merge(Map<String, String> record, PrintWriter output,
+              ErrorSink errors) {
+        List<String> texts = new ArrayList<String>(_shards.size());
+        int missing = 0;
+        for (List<String> pieces : _pieces) {
+            if (pieces == null) {
+                texts.add(null);
+                continue;
+            }
+            StringBuilder text = new StringBuilder();
+            for (int k = 0; k < pieces.size(); k += 1) {
+                if (k % 2 == 0) {
+                    text.append(pieces.get(k));
+                } else if (record.containsKey(pieces.get(k))) {
+                    escape(record.get(pieces.get(k)), text);
+                } else {
+                    errors.report(String.format("no value for field %s",
+                                                pieces.get(k)));
+                    missing += 1;
+                }
+            }
+            texts.add(text.toString());
+        }
+        List<CompletableFuture<Shard.Result>> results =
+            new ArrayList<CompletableFuture<Shard.Result>>(_shards.size());
+        for (int k = 0; k < _shards.size(); k += 1) {
+            Shard.Result result = _results.get(k);
+            if (result == null) {
+                result = _shards.get(k).withText(texts.get(k)).format();
+            }
+            results.add(CompletableFuture.completedFuture(result));
+        }
+        try {
+            return missing + _coordinator.collect(results, output, errors);
+        } catch (IOException e) {
+            throw new AssertionError("completed Shard failed", e);
+        }
+    }
+
+    /** Format my text with the fields of each record from RECORDS, in
+     *  turn, writing the results to OUTPUT, each starting a new page, and
+     *  reporting errors to ERRORS, each prefixed with the number of its
+     *  record (counting from 1).  Records are formatted by THREADS
+     *  threads, with a bounded number read ahead of those written.
+     *  Returns the total number of errors reported. */
+    int mergeAll(Records records, PrintWriter output, ErrorSink errors,
+                 int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Merged>> pending = new ArrayDeque<Future<Merged>>();
+        int count = 0;
+        boolean started = false;
+        try {
+            int n = 0;
+            Map<String, String> record = records.next();
+            while (record != null || !pending.isEmpty()) {
+                if (record != null && pending.size() < READ_AHEAD * threads) {
+                    n += 1;
+                    pending.add(pool.submit(new Merged(this, n, record)));
+                    record = records.next();
+                    continue;
+                }
+                Merged merged = await(pending.remove());
+                for (String msg : merged.errors) {
+                    errors.report(String.format("record %d: %s",
+                                                merged.number, msg));
+                }
+                count += merged.count;
+                if (!merged.output.isEmpty()) {
+                    if (started) {
+                        output.print('\f');
+                    }
+                    output.print(merged.output);
+                    started = true;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        output.flush();
+        return count;
+    }
+
+    /** Returns the text of the Shard TEXT as pieces: literal text in the
+     *  even-numbered pieces, and the names of fields to be inserted
+     *  between them in the odd-numbered pieces. */
+    static List<String> pieces(String text) {
+        List<int[]> spans = new ArrayList<int[]>();
+        List<String> names = new ArrayList<String>();
+        findFields(text, 0, spans, names, true);
+        List<String> pieces = new ArrayList<String>(2 * names.size() + 1);
+        int copied = 0;
+        for (int k = 0; k < spans.size(); k += 1) {
+            pieces.add(text.substring(copied, spans.get(k)[0]));
+            pieces.add(names.get(k));
+            copied = spans.get(k)[1];
+        }
+        pieces.add(text.substring(copied));
+        return pieces;
+    }
+
+    /** Returns TEXT with each field replaced by its value in RECORD, as
+     *  merge does it, reporting missing fields to ERRORS.  Formatting the
+     *  result gives the result of merge. */
+    static String substitute(String text, Map<String, String> record,
+                             ErrorSink errors) {
+        StringBuilder result = new StringBuilder();
+        List<String> pieces = pieces(text);
+        for (int k = 0; k < pieces.size(); k += 1) {
+            if (k % 2 == 0) {
+                result.append(pieces.get(k));
+            } else if (record.containsKey(pieces.get(k))) {
+                escape(record.get(pieces.get(k)), result);
+            } else {
+                errors.report(String.format("no value for field %s",
+                                            pieces.get(k)));
+            }
+        }
+        return result.toString();
+    }
+
+    /** Add to SPANS the start and end offsets, plus BASE, of each
+     *  \field{NAME} in TEXT, and to NAMES each NAME.  Fields are allowed
+     *  in endnotes only iff TOP, as TEXT is then the main text.  Stops at
+     *  the first error in TEXT, which formatting will report. */
+    private static void findFields(String text, int base, List<int[]> spans,
+                                   List<String> names, boolean top) {
+        Lexer lexer = new Lexer(new StringReader(text));
+        String bare = null;
+        for (int start = 0, kind = lexer.next(); kind != Lexer.ERROR;
+             start = (int) lexer.offset(), kind = lexer.next()) {
+            String previous = bare;
+            bare = null;
+            if (kind == Lexer.EOF) {
+                return;
+            } else if (kind != Lexer.COMMAND) {
+                continue;
+            }
+            String command = lexer.text();
+            if (!lexer.hasArgument()) {
+                if (command.equals("field")) {
+                    throw new FormatException("Field has no name.");
+                }
+                bare = command;
+                continue;
+            } else if (command.equals("field") && previous != null) {
+                throw new FormatException(
+                    String.format("Field directly after \\%s.", previous));
+            }
+            int argStart = (int) lexer.offset();
+            String arg;
+            try {
+                arg = lexer.argument();
+            } catch (FormatException e) {
+                return;
+            }
+            if (command.equals("field")) {
+                spans.add(new int[] { base + start,
+                                      base + (int) lexer.offset() });
+                names.add(arg);
+            } else if (command.equals("endnote") && top) {
+                findFields(arg, base + argStart, spans, names, false);
+            } else {
+                List<int[]> inner = new ArrayList<int[]>();
+                findFields(arg, 0, inner, new ArrayList<String>(), false);
+                if (!inner.isEmpty()) {
+                    throw new FormatException(
+                        String.format("Field in argument of \\%s.",
+                                      command));
+                }
+            }
+        }
+    }
+
+    /** Append VALUE to OUT as plain text: with \, {, and } escaped, and
+     *  line breaks replaced by blanks. */
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '{' || c == '}') {
+                out.append('\\').append(c);
+            } else if (c == '\n' || c == '\r') {
+                out.append(' ');
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /** Returns the result of MERGED, once it is computed. */
+    private static Merged await(Future<Merged> merged) throws IOException {
+        try {
+            return merged.get();
+        } catch (InterruptedException e) {
+            throw new IOException("merge interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("merge failed", e.getCause());
+        }
+    }
+
+    /** The merge of one record, computed by call. */
+    private static class Merged implements ErrorSink, Callable<Merged> {
+
+        /** The merge of TEMPLATE with RECORD, the NUMBERth record. */
+        Merged(Template template, int number, Map<String, String> record) {
+            this.template = template;
+            this.number = number;
+            this.record = record;
+        }
+
+        @Override
+        public Merged call() {
+            StringWriter text = new StringWriter();
+            count = template.merge(record, new PrintWriter(text), this);
+            output = text.toString();
+            return this;
+        }
+
+        @Override
+        public void report(String msg) {
+            errors.add(msg);
+        }
+
+        /** The Template merged. */
+        private final Template template;
+        /** Number of the record. */
+        private final int number;
+        /** The record merged. */
+        private final Map<String, String> record;
+        /** Formatted text. */
+        private String output;
+        /** Number of errors, as returned by merge. */
+        private int count;
+        /** Error messages. */
+        private final List<String> errors = new ArrayList<String>();
+    }
+
+    /** Number of records per thread that may be formatted ahead of the
+     *  one being written. */
+    private static final int READ_AHEAD = 4;
+
+    /** Formats lines of Shards into pages. */
+    private final ShardCoordinator _coordinator = new ShardCoordinator(1);
+    /** My paragraphs. */
+    private final List<Shard> _shards = new ArrayList<Shard>();
+    /** The pieces of each of _shards that has fields, as for pieces(), or
+     *  null for those without fields. */
+    private final List<List<String>> _pieces = new ArrayList<List<String>>();
+    /** The result of formatting each of _shards that has no fields, or
+     *  null for those with fields. */
+    private final List<Shard.Result> _results = new ArrayList<Shard.Result>();
+    /** Names of my fields. */
+    private final Set<String> _fields = new LinkedHashSet<String>();
+
+}
@@ -0,0 +1,166 @@
+package tex61;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/** Tests of mail-merge Templates.
+ *  @author Jason Qiu
+ */
+public class TemplateTest {
+
+    @Test
+    public void testPieces() {
+        assertEquals("wrong pieces",
+                     Arrays.asList("Dear ", "name", ", you owe ", "amount",
+                                   "."),
+                     Template.pieces("Dear \\field{name}, you owe "
+                                     + "\\field{amount}."));
+        assertEquals("wrong pieces in an endnote",
+                     Arrays.asList("x\\endnote{To ", "name", "}"),
+                     Template.pieces("x\\endnote{To \\field{name}}"));
+        assertEquals("text without fields is one piece",
+                     Arrays.asList("plain \\{text\\}"),
+                     Template.pieces("plain \\{text\\}"));
+    }
+
+    @Test
+    public void testFields() {
+        Template template = new Template(DOCUMENT);
+        assertEquals("wrong fields", Arrays.asList("name", "city", "amount"),
+                     new ArrayList<String>(template.fields()));
+        assertEquals("wrong number of paragraphs without fields", 3,
+                     template.staticParagraphs());
+    }
+
+    @Test
+    public void testRejected() {
+        for (String text : new String[] {
+                "\\textwidth{\\field{width}}", "\\field",
+                "\\nofill\\field{name}",
+                "a\\endnote{b\\indent{\\field{n}}}",
+            }) {
+            try {
+                new Template(text);
+                fail("accepted " + text);
+            } catch (FormatException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Template template = new Template(DOCUMENT);
+        for (Map<String, String> record : records()) {
+            StringWriter output = new StringWriter();
+            ErrorList errors = new ErrorList();
+            int count = template.merge(record, new PrintWriter(output),
+                                       errors);
+            output.flush();
+            assertEquals("wrong error count", errors.messages.size(), count);
+            assertEquals("merge differs from substitution for " + record,
+                         substituted(DOCUMENT, record),
+                         errors.messages + output.toString());
+        }
+    }
+
+    @Test
+    public void testMergeAll() throws IOException {
+        Template template = new Template(DOCUMENT);
+        StringBuilder csv = new StringBuilder("name,city,amount\n");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i += 1) {
+            csv.append("Name").append(i).append(",\"City, ").append(i)
+                .append("\",").append(i * 7).append('\n');
+            Map<String, String> record = new HashMap<String, String>();
+            record.put("name", "Name" + i);
+            record.put("city", "City, " + i);
+            record.put("amount", "" + i * 7);
+            ErrorList errors = new ErrorList();
+            expected.append(i == 0 ? "" : "\f").append(new Formatter().format(
+                Template.substitute(DOCUMENT, record, errors), errors));
+        }
+        for (int threads : new int[] { 1, 3 }) {
+            StringWriter output = new StringWriter();
+            ErrorList errors = new ErrorList();
+            int count = template.mergeAll(
+                new Records(new StringReader(csv.toString()), false),
+                new PrintWriter(output), errors, threads);
+            assertEquals("unexpected errors", 0, count);
+            assertEquals("wrong merged output (" + threads + " threads)",
+                         expected.toString(), output.toString());
+        }
+    }
+
+    @Test
+    public void testMissingField() throws IOException {
+        Template template = new Template("a \\field{x} b \\field{y}");
+        StringWriter output = new StringWriter();
+        ErrorList errors = new ErrorList();
+        int count = template.mergeAll(
+            new Records(new StringReader("{\"x\": 1}\n{\"y\": 2}\n"), true),
+            new PrintWriter(output), errors, 2);
+        assertEquals("wrong error count", 2, count);
+        assertEquals("wrong errors",
+                     Arrays.asList("record 1: no value for field y",
+                                   "record 2: no value for field x"),
+                     errors.messages);
+        assertEquals("wrong output", "   a 1 b\n\f   a b 2\n",
+                     output.toString());
+    }
+
+    /** Returns the errors and output from formatting TEXT with its fields
+     *  replaced by those of RECORD. */
+    private String substituted(String text, Map<String, String> record) {
+        ErrorList errors = new ErrorList();
+        String merged = Template.substitute(text, record, errors);
+        String output = new Formatter().format(merged, errors);
+        return errors.messages + output;
+    }
+
+    /** Returns records with values that could upset the formatting if not
+     *  inserted as plain text. */
+    private List<Map<String, String>> records() {
+        String[] values = {
+            "", " ", "Smith", "O'Neil \\& {Sons}", "two\nlines",
+            "\n\nnew paragraph", "\\endnote{x}", "}", "a very long value "
+            + "that will need several lines to hold all of its words",
+        };
+        List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < values.length; i += 1) {
+            Map<String, String> record = new HashMap<String, String>();
+            record.put("name", values[i]);
+            record.put("city", values[(i + 3) % values.length]);
+            if (i % 4 != 3) {
+                record.put("amount", values[(i + 5) % values.length]);
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /** A letter with fields in filled, unfilled, and endnote text. */
+    private static final String DOCUMENT =
+        "\\textheight{6}\\textwidth{30}\\parindent{3}"
+        + "Dear \\field{name},\n\n"
+        + "We write to tell you that your order has shipped from our "
+        + "warehouse and should arrive soon.\n\n"
+        + "\\nofill\n   \\field{name}\n   \\field{city}\n\\fill\n\n"
+        + "The amount due is \\field{amount}\\endnote{Payable in "
+        + "\\field{city} within thirty days.} and may be paid at once.\n\n"
+        + "Our thanks for your custom.\n\n"
+        + "\\nojustify Yours sincerely,\n\n";
+
+}
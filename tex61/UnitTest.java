@@ -7,10 +7,24 @@ import ucb.junit.textui;
  */
 public class UnitTest {
 
-    /** Run the JUnit tests in the tex61 package. */
+    /** Run the JUnit tests in the tex61 package, exiting with a nonzero
+     *  status if any fail. */
     public static void main(String[] ignored) {
-        textui.runClasses(tex61.PageAssemblerTest.class);
-        textui.runClasses(tex61.LineAssemblerTest.class);
+        int failures = 0;
+        failures += textui.runClasses(tex61.PageAssemblerTest.class);
+        failures += textui.runClasses(tex61.LineAssemblerTest.class);
+        failures += textui.runClasses(tex61.FormatterTest.class);
+        failures += textui.runClasses(tex61.LexerTest.class);
+        failures += textui.runClasses(tex61.ShardTest.class);
+        failures += textui.runClasses(tex61.SourceMapTest.class);
+        failures += textui.runClasses(tex61.EventsTest.class);
+        failures += textui.runClasses(tex61.FuzzTest.class);
+        failures += textui.runClasses(tex61.AllocationTest.class);
+        failures += textui.runClasses(tex61.TemplateTest.class);
+        failures += textui.runClasses(tex61.RecordsTest.class);
+        failures += textui.runClasses(tex61.FormatSchedulerTest.class);
+        failures += textui.runClasses(tex61.LayoutTest.class);
+        System.exit(failures == 0 ? 0 : 1);
     }
 }
 